@@ -1,5 +1,7 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.CacheWarmupInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,13 +16,18 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    CacheWarmer cacheWarmer;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        // 预热完成前拒绝店铺和店铺类型请求，只有这两类数据会预热，其他接口不受影响
+        registry.addInterceptor(new CacheWarmupInterceptor(cacheWarmer))
+                .addPathPatterns("/shop/**", "/shop-type/**").order(-1);
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
                         "/shop/**",
                         "/voucher/**",
-                        "/shop-type/**",
+                        "/shop-type/list",
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
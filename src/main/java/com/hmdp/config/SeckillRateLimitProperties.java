@@ -0,0 +1,85 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀限流配置，可以按优惠券单独配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill.rate-limit")
+public class SeckillRateLimitProperties {
+
+    /**
+     * 是否开启限流
+     */
+    private boolean enabled = false;
+    /**
+     * 优惠券维度默认的令牌桶
+     */
+    private Bucket voucher = new Bucket(2000, 2000);
+    /**
+     * 用户维度的令牌桶，rate小于等于0表示不限制单个用户
+     */
+    private Bucket user = new Bucket(1, 2);
+    /**
+     * 按优惠券id单独配置的令牌桶
+     */
+    private Map<Long, Bucket> vouchers = new HashMap<>();
+    /**
+     * 本地预过滤：本节点在优惠券令牌中所占的份额，例如4个节点配置0.25，小于等于0表示关闭
+     */
+    private double localShare = 0;
+
+    /**
+     * 启动时校验配置：lua脚本按 capacity / rate 计算令牌桶的过期时间，rate为0时会得到inf
+     */
+    @PostConstruct
+    public void validate() {
+        checkBucket("voucher", voucher);
+        for (Map.Entry<Long, Bucket> entry : vouchers.entrySet()) {
+            checkBucket("vouchers." + entry.getKey(), entry.getValue());
+        }
+        if (user.getRate() > 0) {
+            checkBucket("user", user);
+        }
+    }
+
+    private static void checkBucket(String name, Bucket bucket) {
+        if (!(bucket.getRate() > 0) || !(bucket.getCapacity() >= 1)) {
+            throw new IllegalStateException("hmdp.seckill.rate-limit." + name
+                    + " 配置错误，rate必须大于0，capacity不能小于1: " + bucket);
+        }
+    }
+
+    public Bucket getVoucherBucket(Long voucherId) {
+        Bucket bucket = vouchers.get(voucherId);
+        return bucket == null ? voucher : bucket;
+    }
+
+    @Data
+    public static class Bucket {
+        /**
+         * 每秒生成的令牌数
+         */
+        private double rate;
+        /**
+         * 令牌桶容量，允许的突发请求数
+         */
+        private double capacity;
+
+        public Bucket() {
+        }
+
+        public Bucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存运行状态
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheWarmer cacheWarmer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询本地缓存和Redis缓存的命中情况
+     */
+    @GetMapping("stats")
+    public Result queryStats() {
+        return Result.ok(cacheClient.getStats());
+    }
+
+    /**
+     * 查询启动预热的进度
+     */
+    @GetMapping("warmup")
+    public Result queryWarmup() {
+        return Result.ok(cacheWarmer.getProgress());
+    }
+
+    /**
+     * 查询当前探测到的热点key
+     */
+    @GetMapping("hotkeys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.getHotKeys());
+    }
+}
@@ -36,6 +36,16 @@ public class ShopController {
         return Result.ok(shopService.queryById(id));
     }
 
+    /**
+     * 查询商铺的销量、评论数和评分
+     * @param id 商铺id
+     * @return 计数数据
+     */
+    @GetMapping("/{id}/counters")
+    public Result queryShopCounters(@PathVariable("id") Long id) {
+        return shopService.queryCounters(id);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +53,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -4,12 +4,16 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -25,8 +29,53 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
-    @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryShopType();
+    /**
+     * 首页类型列表，直接返回内存中序列化好的JSON
+     */
+    @GetMapping(value = "list", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] queryTypeList() {
+        return typeService.queryShopTypeJson();
+    }
+
+    /**
+     * 新增店铺类型，所有节点重新加载
+     * @param shopType 店铺类型数据
+     * @return 店铺类型id
+     */
+    @PostMapping
+    public Result saveShopType(@RequestBody ShopType shopType) {
+        // 登录拦截器只设置401，不会拦下请求，写接口自己判断
+        if (UserHolder.getUser() == null) {
+            return Result.fail("请先登录");
+        }
+        return typeService.saveShopType(shopType);
+    }
+
+    /**
+     * 更新店铺类型，所有节点重新加载
+     * @param shopType 店铺类型数据
+     * @return 无
+     */
+    @PutMapping
+    public Result updateShopType(@RequestBody ShopType shopType) {
+        // 登录拦截器只设置401，不会拦下请求，写接口自己判断
+        if (UserHolder.getUser() == null) {
+            return Result.fail("请先登录");
+        }
+        return typeService.updateShopType(shopType);
+    }
+
+    /**
+     * 直接修改数据库后通知所有节点重新加载店铺类型
+     * @return 无
+     */
+    @PostMapping("refresh")
+    public Result refreshShopType() {
+        // 登录拦截器只设置401，不会拦下请求，写接口自己判断
+        if (UserHolder.getUser() == null) {
+            return Result.fail("请先登录");
+        }
+        typeService.publishChange();
+        return Result.ok();
     }
 }
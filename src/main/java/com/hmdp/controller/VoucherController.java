@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -30,7 +31,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +46,19 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 立即预热即将开始的秒杀券
+     * @return 预热报告
+     */
+    @PostMapping("seckill/preheat")
+    public Result preheatSeckillVouchers() {
+        // /voucher/**不经过登录拦截，预热会查询数据库、写入Redis，不能匿名调用
+        if (UserHolder.getUser() == null) {
+            return Result.fail("请先登录");
+        }
+        return Result.ok(voucherService.preheatSeckillVouchers());
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
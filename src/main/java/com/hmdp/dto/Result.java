@@ -10,21 +10,30 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 public class Result {
+    /**
+     * 请求被限流
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
     private Boolean success;
     private String errorMsg;
     private Object data;
     private Long total;
+    private Integer code;
 
     public static Result ok(){
-        return new Result(true, null, null, null);
+        return new Result(true, null, null, null, null);
     }
     public static Result ok(Object data){
-        return new Result(true, null, data, null);
+        return new Result(true, null, data, null, null);
     }
     public static Result ok(List<?> data, Long total){
-        return new Result(true, null, data, total);
+        return new Result(true, null, data, total, null);
     }
     public static Result fail(String errorMsg){
-        return new Result(false, errorMsg, null, null);
+        return new Result(false, errorMsg, null, null, null);
+    }
+    public static Result fail(Integer code, String errorMsg){
+        return new Result(false, errorMsg, null, null, code);
     }
 }
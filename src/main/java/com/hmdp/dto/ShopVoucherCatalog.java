@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.Voucher;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 店铺的优惠券目录，只包含不常变化的字段，秒杀库存在返回前从Redis叠加
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ShopVoucherCatalog {
+    private Long shopId;
+    private List<Voucher> vouchers;
+}
@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheOutbox;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  缓存失效事件服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中记录需要删除的缓存key，事务提交后删除缓存
+     */
+    void record(String... keys);
+
+    /**
+     * 批量处理已经到期的失效事件
+     * @return 处理的事件数量
+     */
+    int flush();
+}
@@ -13,4 +13,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    SeckillVoucher queryVoucherState(Long voucherId);
+
+    void primeVoucherState(SeckillVoucher voucher);
+
+    boolean isSoldOut(Long voucherId);
+
+    void markSoldOut(Long voucherId);
+
+    void markSoldOutLocally(Long voucherId);
+
 }
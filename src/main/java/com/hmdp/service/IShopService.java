@@ -15,5 +15,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
+
+    /**
+     * 查询店铺的销量、评论数和评分，Hash存储模式下只读取这几个字段
+     */
+    Result queryCounters(Long id);
+
+    /**
+     * 增加店铺的计数列（sold、comments），Hash存储模式下原地更新缓存，不失效整条缓存。
+     * 在事务中调用时随事务提交，提交后再更新缓存
+     */
+    boolean incrementCounter(Long id, String column, int delta);
 }
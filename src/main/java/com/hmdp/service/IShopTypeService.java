@@ -4,8 +4,6 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
-import java.util.List;
-
 /**
  * <p>
  *  服务类
@@ -17,4 +15,19 @@ import java.util.List;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryShopType();
+
+    /**
+     * 序列化好的店铺类型响应，直接写给客户端
+     */
+    byte[] queryShopTypeJson();
+
+    Result saveShopType(ShopType shopType);
+
+    Result updateShopType(ShopType shopType);
+
+    /**
+     * 修改店铺类型后调用，递增Redis中的版本号并通知所有节点重新加载。
+     * 上面两个写接口已经调用；直接改库的运维操作需要手动调用一次（POST /shop-type/refresh）
+     */
+    void publishChange();
 }
@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -21,4 +24,10 @@ public interface IUserService extends IService<User> {
 
     
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    /**
+     * 批量查询用户的公开信息，走缓存
+     * @return 用户id到用户信息的映射，不包含不存在的用户
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,10 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     Result createVoucherOrder(Long voucherId);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    boolean createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    Map<String, Object> queryOrderStreamStats();
 }
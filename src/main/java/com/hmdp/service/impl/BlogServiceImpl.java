@@ -1,34 +1,43 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -47,12 +56,32 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     StringRedisTemplate stringRedisTemplate;
     @Autowired
     FollowServiceImpl followService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IShopService shopService;
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    @PostConstruct
+    private void initBloomFilter() {
+        idBloomFilter.register(CACHE_BLOG_KEY,
+                () -> listObjs(new QueryWrapper<Blog>().select("id"), id -> ((Number) id).longValue()));
+    }
+
+    /**
+     * 批量填充笔记作者，一次MGET查缓存，未命中的用户一次IN查询
+     */
+    private void queryBlogUser(List<Blog> blogs) {
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
 
@@ -65,23 +94,26 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        queryBlogUser(records);
+        isBlogLiked(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        // 布隆过滤器判断不存在，直接返回
+        if (!idBloomFilter.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在！");
+        }
         // 查询Blog
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
         //2.查询blog有关的用户
-        queryBlogUser(blog);
-        isBlogLiked(blog);
+        List<Blog> blogs = Collections.singletonList(blog);
+        queryBlogUser(blogs);
+        isBlogLiked(blogs);
         return Result.ok(blog);
     }
 
@@ -119,6 +151,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 3.2.保存用户到Redis的set集合  zadd key value score
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.evict(CACHE_BLOG_KEY + id);
             }
         } else {
             // 4.如果已点赞，取消点赞
@@ -127,6 +160,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 4.2.把用户从Redis的set集合移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.evict(CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -137,16 +171,22 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             Boolean isMember = stringRedisTemplate.opsForSet().isMember(key, userId.toString()); //看看在不在Redis中
             blog.setIsLike(BooleanUtil.isTrue(isMember)); //如果在就设置为True，不在就设置为false。
         }*/
-    private void isBlogLiked(Blog blog) {
+    private void isBlogLiked(List<Blog> blogs) {
         UserDTO user = UserHolder.getUser();        // 1.获取登录用户
-        if (user == null) {           // 用户未登录，无需查询是否点赞
+        if (user == null || blogs.isEmpty()) {           // 用户未登录，无需查询是否点赞
             return;
         }
-        Long userId = user.getId();
-        // 2.判断当前登录用户是否已经点赞
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        byte[] userId = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        // 2.用一个pipeline判断当前登录用户是否点赞了每一篇笔记
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
 
     @Override
@@ -161,13 +201,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Long> ids = top5.stream()
                 .map(Long::valueOf)
                 .collect(Collectors.toList());
-        //根据用户id查询用户 where id in (5, 1) order by field (id ,5 , 1)
-        String idStr = StrUtil.join(",", ids);
-        List<UserDTO> userDTOS = userService.query()
-                .in("id",ids).last("ORDER BY FIELD(id, " + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //根据用户id批量查询用户，结果按ids的顺序
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
 
         return Result.ok(userDTOS);
     }
@@ -182,6 +217,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        idBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
+        // 删除之前缓存的空值，所有节点的本地空值缓存同时失效
+        cacheClient.evict(CACHE_BLOG_KEY + blog.getId());
+        // 探店笔记计入店铺的评论数
+        if (blog.getShopId() != null) {
+            shopService.incrementCounter(blog.getShopId(), "comments", 1);
+        }
         //查询作者的所有粉丝，follow_user_id是作者，userId是粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
 
@@ -224,16 +266,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
         os = minTime == max ? os : os + offset;
-        // 5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-
-        for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            queryBlogUser(blog);
-            // 5.2.查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        // 5.根据id批量查询blog，一次MGET查缓存，未命中的一次IN查询，结果按ids的顺序
+        // 缓存中的对象是共享的，复制一份再填充作者和点赞状态
+        List<Blog> blogs = cacheClient.queryMany(CACHE_BLOG_KEY, ids, Blog.class,
+                        missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                        CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .values().stream()
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
+        // 5.1.查询blog有关的用户
+        queryBlogUser(blogs);
+        // 5.2.查询blog是否被点赞
+        isBlogLiked(blogs);
 
         // 6.封装并返回
         ScrollResult r = new ScrollResult();
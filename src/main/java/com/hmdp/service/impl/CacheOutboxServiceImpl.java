@@ -0,0 +1,124 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_OUTBOX_LOCK_KEY;
+
+/**
+ * <p>
+ * 缓存失效事件服务实现类。
+ * 业务数据更新时在同一个事务中写入失效事件，事务提交后立即删除一次缓存；
+ * 后台任务再把超过延迟时间的事件批量删除一次（延迟双删），覆盖提交前读到旧数据又写回缓存的请求，
+ * 节点在提交后宕机时也不会漏删。
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.cache.outbox.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+    /**
+     * 第二次删除距离事务提交的毫秒数，应大于一次缓存重建的耗时，实际从后台任务第一次读到事件开始计时，最多再晚一个poll-interval
+     */
+    @Value("${hmdp.cache.outbox.double-delete-delay:500}")
+    private long doubleDeleteDelayMillis;
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(String... keys) {
+        if (enabled) {
+            List<CacheOutbox> events = Arrays.stream(keys)
+                    .map(key -> new CacheOutbox().setCacheKey(key))
+                    .collect(Collectors.toList());
+            saveBatch(events);
+        }
+        // 事务提交后先删除一次，其余节点的一级缓存同时失效
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    cacheClient.evict(keys);
+                } catch (Exception e) {
+                    // 删除失败时由后台任务兜底
+                    log.warn("提交后删除缓存失败, keys: {}", Arrays.toString(keys), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 定期处理失效事件，多个节点中同时只有一个在处理
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-interval:1000}")
+    public void poll() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(CACHE_OUTBOX_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 一批处理满了说明还有积压，继续处理
+            while (flush() >= batchSize) {
+                log.debug("继续处理积压的缓存失效事件");
+            }
+        } catch (Exception e) {
+            log.error("处理缓存失效事件失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int flush() {
+        // 1.给新读到的事件打上时间。create_time是插入时间，长事务提交时可能早就过了延迟时间，
+        // 事件只有提交后才读得到，从第一次读到开始计时，第二次删除才不会紧跟在提交后的第一次删除之后
+        update().setSql("visible_time = NOW(3)")
+                .isNull("visible_time")
+                .orderByAsc("id")
+                .last("LIMIT " + batchSize)
+                .update();
+        // 2.用数据库时间判断是否到期，避免应用服务器和数据库时钟不一致
+        List<CacheOutbox> events = query()
+                .apply("visible_time <= NOW(3) - INTERVAL {0} MICROSECOND", doubleDeleteDelayMillis * 1000)
+                .orderByAsc("id")
+                .last("LIMIT " + batchSize)
+                .list();
+        if (events.isEmpty()) {
+            return 0;
+        }
+        // 3.一批事件合并成一次DEL和一条失效广播，删除缓存是幂等的，先删缓存再删事件
+        String[] keys = events.stream().map(CacheOutbox::getCacheKey).distinct().toArray(String[]::new);
+        cacheClient.evict(keys);
+        removeByIds(events.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+        return events.size();
+    }
+}
@@ -4,8 +4,26 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +32,123 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 本地缓存的秒杀券时间窗口，只用来判断秒杀是否开始、结束，不缓存库存
+     */
+    private final Map<Long, SeckillVoucher> voucherStates = new ConcurrentHashMap<>();
+    /**
+     * 本地售罄标记，value是标记的过期时间。过期后放行一个请求去Redis确认，
+     * 这样其他节点归还的库存租约依然能被卖出去
+     */
+    private final Map<Long, Long> soldOutUntil = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.seckill.sold-out-ttl:5000}")
+    private long soldOutTtlMillis;
+    @Value("${hmdp.seckill.missing.max-size:10000}")
+    private long missingMaxSize;
+    @Value("${hmdp.seckill.missing.ttl:5000}")
+    private long missingTtlMillis;
+
+    /**
+     * 数据库中不存在的秒杀券id，避免请求不存在的券时每次都查数据库
+     */
+    private Cache<Long, Boolean> missingVouchers;
+
+    @PostConstruct
+    private void init() {
+        missingVouchers = Caffeine.newBuilder()
+                .maximumSize(missingMaxSize)
+                .expireAfterWrite(missingTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        // 订阅其他节点广播的售罄消息
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            soldOutUntil.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    @Override
+    public SeckillVoucher queryVoucherState(Long voucherId) {
+        SeckillVoucher voucher = voucherStates.get(voucherId);
+        if (voucher != null) {
+            return voucher;
+        }
+        if (missingVouchers.getIfPresent(voucherId) != null) {
+            return null;
+        }
+        voucher = getById(voucherId);
+        if (voucher == null) {
+            missingVouchers.put(voucherId, Boolean.TRUE);
+            return null;
+        }
+        primeVoucherState(voucher);
+        return voucher;
+    }
+
+    @Override
+    public void primeVoucherState(SeckillVoucher voucher) {
+        // 只保留不变的字段，库存以Redis为准
+        SeckillVoucher state = new SeckillVoucher()
+                .setVoucherId(voucher.getVoucherId())
+                .setBeginTime(voucher.getBeginTime())
+                .setEndTime(voucher.getEndTime());
+        voucherStates.put(voucher.getVoucherId(), state);
+        missingVouchers.invalidate(voucher.getVoucherId());
+    }
+
+    @Override
+    public boolean isSoldOut(Long voucherId) {
+        Long until = soldOutUntil.get(voucherId);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        // 标记过期，放行请求去Redis确认，确认售罄后会重新标记
+        soldOutUntil.remove(voucherId, until);
+        return false;
+    }
+
+    /**
+     * 库存租约模式下中心库存租完时，其他节点手里可能还有没卖完的租约，
+     * 只在本节点标记，不广播，避免其他节点拒绝请求导致租约一直卖不出去
+     */
+    @Override
+    public void markSoldOutLocally(Long voucherId) {
+        soldOutUntil.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+    }
+
+    @Override
+    public void markSoldOut(Long voucherId) {
+        Long previous = soldOutUntil.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        if (previous == null) {
+            // 第一次发现售罄时通知其他节点
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 清理已经结束的秒杀券
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictEndedVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        voucherStates.values().removeIf(voucher -> {
+            if (voucher.getEndTime().isBefore(now)) {
+                soldOutUntil.remove(voucher.getVoucherId());
+                return true;
+            }
+            return false;
+        });
+    }
 }
@@ -1,30 +1,34 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.lang.TypeReference;
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 
 
 @Service
@@ -35,6 +39,34 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Autowired
     ShopMapper shopMapper;
+
+    @Autowired
+    CacheClient cacheClient;
+
+    @Autowired
+    IdBloomFilter idBloomFilter;
+
+    @Autowired
+    ICacheOutboxService cacheOutboxService;
+
+    /**
+     * 店铺缓存的存储方式：string 整条编码存储，hash 每列一个字段，计数列原地更新
+     */
+    @Value("${hmdp.cache.shop.storage:string}")
+    private String storage;
+
+    private static final List<String> COUNTER_COLUMNS = Arrays.asList("sold", "comments");
+
+    private boolean isHashStorage() {
+        return "hash".equalsIgnoreCase(storage);
+    }
+
+    @PostConstruct
+    private void initBloomFilter() {
+        idBloomFilter.register(CACHE_SHOP_KEY,
+                () -> listObjs(new QueryWrapper<Shop>().select("id"), id -> ((Number) id).longValue()));
+    }
+
     @Override
     public Result queryById(Long id ) {
         //解决缓存穿透
@@ -43,8 +75,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //互斥锁解决缓存击穿
 //        Shop shop = queryWithPassMutex(id);
 
-        //逻辑过期解决缓存击穿
-        Shop shop =  queryWithLogicalExpire(id);
+        //逻辑过期解决缓存击穿，热点店铺直接从本地缓存返回；Hash模式下计数列由incrementCounter原地更新，不用重建整条缓存
+        Shop shop = isHashStorage()
+                ? cacheClient.queryHash(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                : cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
 
         if(shop == null) {
@@ -55,154 +89,38 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
 
     public Shop queryWithPassMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //redis查询
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //存在就返回
-        if(StrUtil.isNotBlank(shopJson)) {
-
-            log.info("Redis中存在!");
-            Shop shop = JSONUtil.toBean(shopJson,Shop.class);
-            return shop;
-        }
-        //看命中的是否是空值，如果==null，说明不存在，！=null，说明存在，并且他的值是 ""。所以不等于的时候要排除
-        if(shopJson != null) {
-            return null;
-        }
-
-        //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean gotLock = tryLock(lockKey);
-            if(!gotLock) {
-                Thread.sleep(50);
-                return queryWithPassMutex(id);
-            }
-            //判断是否获取成功
-            //失败，则休眠并重试
-            //成功就根据id查询数据库
-
-
-            //不存在: 根据id查询数据库
-            shop = shopMapper.selectById(id);
-            Thread.sleep(200); //模拟重建的延时
-            //不存在
-            if(shop == null) { //解决缓存穿透
-                log.info("数据库中不存在!");
-                //将redis和数据库中都不存在的存入Redis中
-
-                stringRedisTemplate.opsForValue().set(key, "", 2L,TimeUnit.MINUTES);
-
-                return null;
-            }
-            log.info("数据库中存在!");
-            //存在：写入redis，并返回
-            stringRedisTemplate.opsForValue().set(key , JSONUtil.toJsonStr(shop),30L, TimeUnit.MINUTES);
-            log.info("写入Redis成功!");
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            unlock(lockKey);
-        }
-
-
-        return shop;
-    }
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+        //同一个节点的并发请求合并成一次，只有一个请求去竞争互斥锁，其余请求等待结果
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
-        //查询店铺数据
+    public void saveShop2Redis(Long id, Long expireSeconds) {
+        //查询店铺数据，按逻辑过期写入Redis
         Shop shop = getById(id);
-        Thread.sleep(200);
-        //封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     //封装的缓存穿透代码
     public Shop queryWithPassThrough(Long id) {
-        String key = "cache:shop:" + id;
-        //redis查询
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //存在就返回
-        if(StrUtil.isNotBlank(shopJson)) {
-
-            log.info("Redis中存在!");
-            Shop shop = JSONUtil.toBean(shopJson,Shop.class);
-            return shop;
-        }
-
-        //shopJson三种情况：1.null 2.有值 3.""。上面的逻辑走下来，只剩下情况1和3。
-        if(shopJson != null) {
-            // != null 说明shopJson == ""。shopJson一开始肯定是null,所以才会执行数据库，数据库将无效key写入Redis，shopJson才!=null
-            // shopJson == ""的前提是数据库将""写入了Redis。所以以后每次打入""，都会被Redis从这里拦截住。
-            return null;
-        }
-
-        //根据id查询数据库
-        //不存在: 根据id查询数据库
-
-        Shop shop = shopMapper.selectById(id);
-
-        //不存在
-        if(shop == null) { //解决缓存穿透
-            log.info("数据库中不存在!");
-            //将redis和数据库中都不存在的存入Redis中
-            stringRedisTemplate.opsForValue().set(key, "", 2L,TimeUnit.MINUTES);
-            return null;
-        }
-        log.info("数据库中存在!");
-        //存在：写入redis，并返回
-        stringRedisTemplate.opsForValue().set(key , JSONUtil.toJsonStr(shop),30, TimeUnit.MINUTES);
-        log.info("写入Redis成功!");
-        return shop;
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY +id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(json)) {
-            return null;
-        }
-        //将shop和expireTime从redis中的json取出来
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            //没过期
-            return shop;
-        }
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean gotLock = tryLock(lockKey);
-        if(gotLock) {
-            CACHE_REBUILD_EXECUTOR.submit(()-> {
-                try {
-                    this.saveShop2Redis(id,20L);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    unlock(lockKey);
-                }
-            });
-        }
-        return shop;
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        idBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 删除之前缓存的空值，所有节点的本地空值缓存同时失效
+        cacheClient.evict(CACHE_SHOP_KEY + shop.getId(), CacheClient.hashKey(CACHE_SHOP_KEY, shop.getId()));
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -212,8 +130,58 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         updateById(shop);
 
-        stringRedisTemplate.delete("cache:shop:" + shop.getId());
+        //在同一个事务中记录失效事件，提交后删除Redis缓存和所有节点的本地缓存，后台任务延迟再删一次
+        cacheOutboxService.record(CACHE_SHOP_KEY + id, CacheClient.hashKey(CACHE_SHOP_KEY, id));
         return Result.ok();
     }
 
+    @Override
+    public Result queryCounters(Long id) {
+        Shop shop = isHashStorage()
+                ? cacheClient.queryHashFields(CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                        CACHE_SHOP_TTL, TimeUnit.MINUTES, "sold", "comments", "score")
+                : cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        if (shop == null) {
+            return Result.fail("店铺不存在");
+        }
+        Map<String, Object> counters = new LinkedHashMap<>();
+        counters.put("sold", shop.getSold());
+        counters.put("comments", shop.getComments());
+        counters.put("score", shop.getScore());
+        return Result.ok(counters);
+    }
+
+    @Override
+    public boolean incrementCounter(Long id, String column, int delta) {
+        if (!COUNTER_COLUMNS.contains(column)) {
+            throw new IllegalArgumentException("不支持的计数列: " + column);
+        }
+        boolean isSuccess = update().setSql(column + " = " + column + " + " + delta).eq("id", id).update();
+        if (!isSuccess) {
+            return false;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            // 单条UPDATE自动提交，直接更新缓存
+            applyCounter(id, column, delta);
+            return true;
+        }
+        // 事务提交后再更新缓存，回滚时缓存不变
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                applyCounter(id, column, delta);
+            }
+        });
+        return true;
+    }
+
+    private void applyCounter(Long id, String column, int delta) {
+        if (isHashStorage()) {
+            // 缓存不存在时HINCRBY不生效，下次查询会从数据库完整加载
+            cacheClient.incrementHashField(CACHE_SHOP_KEY, id, column, delta);
+        } else {
+            cacheClient.evict(CACHE_SHOP_KEY + id);
+        }
+    }
+
 }
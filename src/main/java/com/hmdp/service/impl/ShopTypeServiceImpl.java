@@ -2,8 +2,8 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.collection.CollectionUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
-import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
@@ -11,19 +11,25 @@ import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
  *  服务实现类
+ *  店铺类型几乎不变，每个节点在内存中保存一份不可变的快照，连同序列化好的响应一起替换。
+ *  Redis中保存版本号，修改类型后递增版本号并广播，各节点收到消息或者定时检查到版本变化时重新加载。
  * </p>
  *
  * @author 虎哥
@@ -37,49 +43,126 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     StringRedisTemplate stringRedisTemplate;
 
     @Autowired
-    ShopTypeMapper shopTypeMapper;
+    RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * 一个版本的店铺类型和序列化好的响应，创建后不再修改
+     */
+    private static class Snapshot {
+        private final String version;
+        private final Result result;
+        private final byte[] json;
+
+        Snapshot(String version, Result result, byte[] json) {
+            this.version = version;
+            this.result = result;
+            this.json = json;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                refreshIfChanged(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_SHOP_TYPE_CHANNEL));
+    }
 
     @Override
     public Result queryShopType() {
-        String key = "cache:shopType";
-        // 1.查询redis缓存
-        List<String> typeJson = stringRedisTemplate.opsForList().range(key, 0, -1);
-        // 2.判断是否命中
-        if (CollectionUtil.isNotEmpty(typeJson)) {
-            // 2.0 如果为空对象(防止缓存穿透时存入的空对象)
-            if (StrUtil.isBlank(typeJson.get(0))) {
-                return Result.fail("商品分类信息为空！");
-            }
-            // 2.1 命中则转换List<String> -> List<ShopType> 并返回、
-            List<ShopType> typeList = new ArrayList<>();
-            for (String jsonString : typeJson) {
-                ShopType shopType = JSONUtil.toBean(jsonString, ShopType.class);
-                typeList.add(shopType);
-            }
-            log.info("数据在Redis中！！");
-            return Result.ok(typeList);
+        return currentSnapshot().result;
+    }
+
+    @Override
+    public byte[] queryShopTypeJson() {
+        return currentSnapshot().json;
+    }
+
+    @Override
+    public Result saveShopType(ShopType shopType) {
+        save(shopType);
+        // 单条语句自动提交，写库后再通知各节点重新加载
+        publishChange();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    public Result updateShopType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
         }
-        // 3. 未命中，查询数据库
-        List<ShopType> typeList = query().orderByAsc("sort").list();
-        // 3.1 数据库中不存在
-        if (CollectionUtil.isEmpty(typeList)) {
-            // 添加空对象到redis，解决缓存穿透
-            stringRedisTemplate.opsForList().rightPushAll(key, CollectionUtil.newArrayList(""));
-            stringRedisTemplate.expire(key,30, TimeUnit.MINUTES);
-            // 返回错误
-            return Result.fail("商品分类信息为空！");
+        updateById(shopType);
+        publishChange();
+        return Result.ok();
+    }
+
+    @Override
+    public void publishChange() {
+        Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(CACHE_SHOP_TYPE_CHANNEL, String.valueOf(version));
+        refreshIfChanged(String.valueOf(version));
+    }
+
+    /**
+     * 定期检查版本号，兜底丢失的广播消息
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.shop-type.check-interval:10000}")
+    public void checkVersion() {
+        if (snapshot == null) {
+            return;
         }
-        // 3.2 数据库中存在,转换List<ShopType> -> List<String> 类型
-        List<String> shopTypeList = new ArrayList<>();
-        for (ShopType shopType : typeList) {
-            String jsonStr = JSONUtil.toJsonStr(shopType);
-            shopTypeList.add(jsonStr);
+        try {
+            refreshIfChanged(readVersion());
+        } catch (Exception e) {
+            log.warn("检查店铺类型版本失败", e);
         }
-        // 4.写入redis缓存, 有顺序只能RPUSH
-        stringRedisTemplate.opsForList().rightPushAll(key, shopTypeList);
-        log.info("数据在MySQL中!!");
-        // 5. 返回
-        return Result.ok(typeList);
     }
-}
 
+    private Snapshot currentSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = reload();
+        }
+        return current;
+    }
+
+    private void refreshIfChanged(String version) {
+        Snapshot current = snapshot;
+        if (current == null || !current.version.equals(version)) {
+            reload();
+        }
+    }
+
+    /**
+     * 先读版本号再查数据库，加载期间版本又变化时，下一次检查会再加载一次
+     */
+    private synchronized Snapshot reload() {
+        String version = readVersion();
+        Snapshot current = snapshot;
+        if (current != null && current.version.equals(version)) {
+            return current;
+        }
+        List<ShopType> typeList = query().orderByAsc("sort").list();
+        Result result = CollectionUtil.isEmpty(typeList)
+                ? Result.fail("商品分类信息为空！")
+                : Result.ok(Collections.unmodifiableList(typeList));
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        current = new Snapshot(version, result, json);
+        snapshot = current;
+        log.info("加载店铺类型, 版本: {}, 数量: {}", version, typeList.size());
+        return current;
+    }
+
+    private String readVersion() {
+        return StrUtil.emptyToDefault(stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY), "0");
+    }
+}
@@ -1,24 +1,72 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockStore;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DEAD_LETTER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
 
 /**
  * <p>
@@ -28,27 +76,383 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IIdWorker idWorker;
 
     @Resource
     StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IShopService shopService;
+    /**
+     * 优惠券所属的店铺，创建后不会变化，用来给店铺累加销量
+     */
+    private final Map<Long, Long> voucherShops = new ConcurrentHashMap<>();
+    /**
+     * 异步线程中拿不到AopContext，注入自身的代理对象来保证事务生效
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService self;
+
+    /**
+     * 是否开启异步秒杀：Redis中完成资格判断，数据库下单交给后台线程
+     */
+    @Value("${hmdp.seckill.async:true}")
+    private boolean asyncOrder;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SECKILL_LEASED_SCRIPT;
+    static {
+        SECKILL_LEASED_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_LEASED_SCRIPT.setLocation(new ClassPathResource("seckill_leased.lua"));
+        SECKILL_LEASED_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 每个节点上的消费者数量，多个节点组成同一个消费者组共同消费订单
+     */
+    @Value("${hmdp.seckill.stream.consumers:2}")
+    private int consumerCount;
+    /**
+     * pending-list中的消息空闲超过该时间，认为原消费者已宕机，由当前节点认领
+     */
+    @Value("${hmdp.seckill.stream.claim-idle:60000}")
+    private long claimIdleMillis;
+    /**
+     * 暂时失败的消息最多重试的次数，超过后转入死信队列
+     */
+    @Value("${hmdp.seckill.stream.max-retries:5}")
+    private int maxRetries;
+    /**
+     * 重试pending-list的最长退避毫秒数，从20毫秒开始每次翻倍
+     */
+    @Value("${hmdp.seckill.stream.retry-backoff-max:5000}")
+    private long retryBackoffMaxMillis;
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    /**
+     * 攒批写库：最多batchSize条或者最多等待batchWindow毫秒提交一次
+     */
+    @Value("${hmdp.seckill.batch.size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.batch.window:20}")
+    private long batchWindowMillis;
+
+    private static final long RETRY_BACKOFF_MIN_MILLIS = 20;
+
+    private ExecutorService seckillOrderExecutor;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        if (!asyncOrder) {
+            return;
+        }
+        createOrderGroup();
+        // 消费者名称在同一台机器上保持稳定，重启后可以直接重放自己pending-list中的消息
+        String consumerPrefix = NetUtil.getLocalHostName() + ":" + serverPort;
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + "-" + i));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        if (seckillOrderExecutor != null) {
+            seckillOrderExecutor.shutdown();
+            seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private void createOrderGroup() {
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 消费者组已经存在
+            log.debug("消费者组已存在: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 一条订单消息的处理结果，只有写入成功或者确定不能下单的消息才ACK
+     */
+    private enum OrderOutcome {
+        /**
+         * 已写入数据库，包括消息重放时订单已经存在
+         */
+        PERSISTED,
+        /**
+         * 数据库库存不足，重试也不会成功，转入死信队列
+         */
+        REJECTED,
+        /**
+         * 暂时失败，留在pending-list中稍后重试
+         */
+        RETRY
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+        private final Consumer consumer;
+        private long lastClaimTime;
+        /**
+         * pending-list中消息的失败次数，只在当前消费者线程中访问
+         */
+        private final Map<RecordId, Integer> retries = new HashMap<>();
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        }
+
+        @Override
+        public void run() {
+            // 启动时先处理上次宕机遗留在pending-list中的消息
+            handlePendingList();
+            while (running) {
+                try {
+                    // 1.认领其他消费者超时未确认的消息
+                    if (System.currentTimeMillis() - lastClaimTime > claimIdleMillis / 2) {
+                        lastClaimTime = System.currentTimeMillis();
+                        if (claimIdleMessages()) {
+                            handlePendingList();
+                        }
+                    }
+                    // 2.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = readOrders(batchSize, Duration.ofSeconds(2));
+                    // 3.判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    // 4.攒批：凑够batchSize条或者等满batchWindow毫秒
+                    list = new ArrayList<>(list);
+                    long deadline = System.currentTimeMillis() + batchWindowMillis;
+                    while (list.size() < batchSize && running) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        List<MapRecord<String, Object, Object>> more = readOrders(batchSize - list.size(), Duration.ofMillis(remaining));
+                        if (more == null || more.isEmpty()) {
+                            break;
+                        }
+                        list.addAll(more);
+                    }
+                    // 5.批量创建订单并ACK确认 XACK stream.orders g1 id1 id2 ...
+                    if (handleRecords(list) > 0) {
+                        // 有消息暂时失败，留在pending-list中退避重试
+                        handlePendingList();
+                    }
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        private void handlePendingList() {
+            long backoff = 0;
+            while (running) {
+                try {
+                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.from("0"))
+                    );
+                    // 2.pending-list中没有消息，结束
+                    if (list == null || list.isEmpty()) {
+                        retries.clear();
+                        break;
+                    }
+                    // 3.全部处理完，继续读下一批
+                    if (handleRecords(list) == 0) {
+                        backoff = 0;
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.warn("处理pending-list订单异常: {}", e.getMessage());
+                }
+                // 4.还有消息没处理完，指数退避后再重试，失败次数超过上限的消息会转入死信队列
+                backoff = backoff == 0 ? RETRY_BACKOFF_MIN_MILLIS : Math.min(backoff * 2, retryBackoffMaxMillis);
+                ThreadUtil.sleep(backoff);
+            }
+        }
+
+        /**
+         * 把其他消费者空闲超时的消息转移到当前消费者的pending-list
+         */
+        private boolean claimIdleMessages() {
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+            List<RecordId> ids = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!consumer.getName().equals(message.getConsumerName())
+                        && message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis) {
+                    ids.add(message.getId());
+                }
+            }
+            if (ids.isEmpty()) {
+                return false;
+            }
+            List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.streamCommands().xClaimJustId(
+                            SECKILL_ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8),
+                            SECKILL_ORDER_GROUP,
+                            consumer.getName(),
+                            XClaimOptions.minIdleMs(claimIdleMillis).ids(ids.toArray(new RecordId[0]))));
+            log.info("消费者{}认领了{}条超时订单消息", consumer.getName(), claimed == null ? 0 : claimed.size());
+            return claimed != null && !claimed.isEmpty();
+        }
+
+        private List<MapRecord<String, Object, Object>> readOrders(int count, Duration block) {
+            return stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(count).block(block),
+                    StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.lastConsumed())
+            );
+        }
+
+        /**
+         * 处理一批消息，ACK并删除写入成功或者转入死信队列的消息
+         * @return 留在pending-list中等待重试的消息数量
+         */
+        private int handleRecords(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            for (MapRecord<String, Object, Object> record : list) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            OrderOutcome[] outcomes = handleVoucherOrders(voucherOrders);
+            List<RecordId> finished = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> record = list.get(i);
+                RecordId recordId = record.getId();
+                if (outcomes[i] == OrderOutcome.RETRY) {
+                    int attempts = retries.merge(recordId, 1, Integer::sum);
+                    if (attempts <= maxRetries) {
+                        continue;
+                    }
+                    deadLetter(record, "重试" + maxRetries + "次仍然失败");
+                } else if (outcomes[i] == OrderOutcome.REJECTED) {
+                    deadLetter(record, "数据库库存不足");
+                }
+                retries.remove(recordId);
+                finished.add(recordId);
+            }
+            if (!finished.isEmpty()) {
+                // ACK后立即删除，队列中只保留还没处理完的消息，不会无限增长
+                RecordId[] recordIds = finished.toArray(new RecordId[0]);
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, recordIds);
+                stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM_KEY, recordIds);
+            }
+            return list.size() - finished.size();
+        }
+
+        /**
+         * Redis已经扣过库存和记录了下单用户，但订单无法写入数据库，转入死信队列等待人工处理
+         */
+        private void deadLetter(MapRecord<String, Object, Object> record, String reason) {
+            Map<Object, Object> body = new LinkedHashMap<>(record.getValue());
+            body.put("recordId", record.getId().getValue());
+            body.put("reason", reason);
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_LETTER_KEY, body);
+            log.error("订单消息转入死信队列, 需要人工处理, recordId: {}, reason: {}, order: {}",
+                    record.getId(), reason, record.getValue());
+        }
+    }
+
+    private OrderOutcome[] handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        OrderOutcome[] outcomes = new OrderOutcome[voucherOrders.size()];
+        // 1.一个事务内批量写入订单和扣减库存
+        try {
+            if (self.createVoucherOrderBatch(voucherOrders)) {
+                Arrays.fill(outcomes, OrderOutcome.PERSISTED);
+                return outcomes;
+            }
+        } catch (DuplicateKeyException e) {
+            // 消息重放时订单可能已经写入过
+            log.warn("批量下单出现重复订单，逐条处理, size: {}", voucherOrders.size());
+        } catch (Exception e) {
+            log.warn("批量下单失败，逐条处理, size: {}", voucherOrders.size(), e);
+        }
+        // 2.批量失败，退化为逐条下单
+        for (int i = 0; i < voucherOrders.size(); i++) {
+            outcomes[i] = handleVoucherOrder(voucherOrders.get(i));
+        }
+        return outcomes;
+    }
+
+    private OrderOutcome handleVoucherOrder(VoucherOrder voucherOrder) {
+        // Redis中已经做过一人一单判断，这里加锁只是兜底，拿不到锁说明同一个用户的订单正在处理，稍后重试
+        RLock lock = redissonClient.getLock("order:" + voucherOrder.getUserId());
+        boolean gotLock = lock.tryLock();
+        if (!gotLock) {
+            log.warn("获取下单锁失败，稍后重试, userId: {}", voucherOrder.getUserId());
+            return OrderOutcome.RETRY;
+        }
+        try {
+            return self.createVoucherOrder(voucherOrder) ? OrderOutcome.PERSISTED : OrderOutcome.REJECTED;
+        } catch (DuplicateKeyException e) {
+            log.warn("订单已存在, orderId: {}", voucherOrder.getId());
+            return OrderOutcome.PERSISTED;
+        } catch (Exception e) {
+            log.warn("下单失败，稍后重试, orderId: {}", voucherOrder.getId(), e);
+            return OrderOutcome.RETRY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        // 秒杀时间窗口和售罄标记都在本地判断，不访问Redis和数据库
+        SeckillVoucher voucher = seckillVoucherService.queryVoucherState(voucherId);
+        if (voucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
         if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
             return Result.fail("秒杀未开始！");
         }
         if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
             return Result.fail("秒杀已经结束！");
         }
+        if (seckillVoucherService.isSoldOut(voucherId)) {
+            return Result.fail("已经被抢光啦!下次再来吧!");
+        }
+        // 限流，超出的请求直接拒绝，保护Redis和数据库
+        if (!seckillRateLimiter.tryAcquire(voucherId, UserHolder.getUser().getId())) {
+            return Result.fail(Result.TOO_MANY_REQUESTS, "当前抢购人数过多，请稍后再试！");
+        }
+        if (asyncOrder) {
+            return seckillStockLease.isEnabled() ? seckillVoucherLeased(voucher) : seckillVoucherAsync(voucherId);
+        }
+        voucher = seckillVoucherService.getById(voucherId);
         if (voucher.getStock() < 1) {
+            seckillVoucherService.markSoldOut(voucherId);
             return Result.fail("已经被抢光啦!下次再来吧!");
         }
         Long userId = UserHolder.getUser().getId();
@@ -72,30 +476,238 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
     }
 
+    private Result seckillVoucherLeased(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        Long userId = UserHolder.getUser().getId();
+        // 1.先在本地库存租约中扣减，租约用完才会去Redis续租
+        int acquired = seckillStockLease.tryAcquire(voucherId, voucher.getEndTime());
+        if (acquired == SeckillStockLease.SOLD_OUT) {
+            // 中心库存租完了，但其他节点可能还有租约，只标记本节点
+            seckillVoucherService.markSoldOutLocally(voucherId);
+            return Result.fail("已经被抢光啦!下次再来吧!");
+        }
+        if (acquired == SeckillStockLease.NOT_LOADED) {
+            return Result.fail("秒杀库存尚未加载！");
+        }
+        // 2.执行lua脚本，判断一人一单并发送订单消息
+        long orderId;
+        try {
+            orderId = idWorker.nextId("order");
+        } catch (RuntimeException e) {
+            // 已经扣掉的本地库存要还回去，否则这一份库存永远卖不出去
+            seckillStockLease.release(voucherId);
+            throw e;
+        }
+        String orderKey = SeckillStockStore.orderKey(voucherId);
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(
+                    SECKILL_LEASED_SCRIPT,
+                    Arrays.asList(orderKey, SECKILL_ORDER_STREAM_KEY),
+                    userId.toString(), voucherId.toString(), String.valueOf(orderId)
+            );
+        } catch (RuntimeException e) {
+            releaseIfNotAdmitted(voucherId, orderKey, userId);
+            throw e;
+        }
+        if (result == null || result != 0) {
+            // 3.重复下单，把库存还给本地租约
+            seckillStockLease.release(voucherId);
+            return Result.fail("不能重复下单");
+        }
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 执行脚本时出现异常，脚本可能已经执行、只是没收到回复。用户不在下单用户集合里才说明没有下单成功，归还库存；
+     * 在集合里或者确认不了时不归还，宁可少卖一份也不能超卖
+     */
+    private void releaseIfNotAdmitted(Long voucherId, String orderKey, Long userId) {
+        try {
+            Boolean admitted = stringRedisTemplate.opsForSet().isMember(orderKey, userId.toString());
+            if (Boolean.FALSE.equals(admitted)) {
+                seckillStockLease.release(voucherId);
+            }
+        } catch (RuntimeException e) {
+            log.warn("确认下单结果失败，不归还库存, voucherId: {}, userId: {}", voucherId, userId, e);
+        }
+    }
+
+    private Result seckillVoucherAsync(Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        long orderId = idWorker.nextId("order");
+        // 1.执行lua脚本，原子地完成库存判断、一人一单判断和扣减
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Arrays.asList(SeckillStockStore.stockKey(voucherId), SeckillStockStore.orderKey(voucherId),
+                        SECKILL_ORDER_STREAM_KEY),
+                userId.toString(), voucherId.toString(), String.valueOf(orderId)
+        );
+        int r = result == null ? 3 : result.intValue();
+        // 2.判断结果是否为0
+        if (r != 0) {
+            // 2.1.不为0，没有购买资格
+            if (r == 1) {
+                seckillVoucherService.markSoldOut(voucherId);
+                return Result.fail("已经被抢光啦!下次再来吧!");
+            }
+            if (r == 2) {
+                return Result.fail("不能重复下单");
+            }
+            return Result.fail("秒杀库存尚未加载！");
+        }
+        // 2.2.为0，有购买资格，下单信息已经在lua脚本中写入消息队列
+        // 3.返回订单id
+        return Result.ok(orderId);
+    }
+
     @Transactional
     public Result createVoucherOrder(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
 
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if (count > 0) {
+        // 一人一单：用Redis中的下单用户集合代替count查询，SADD返回0说明已经买过
+        String orderKey = SeckillStockStore.orderKey(voucherId);
+        String member = userId.toString();
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, member);
+        if (added == null || added == 0) {
             return Result.fail("您已经购买过了！傻逼!还想占便宜？");
         }
-
+        // 用户已经先记到了集合里，事务没有提交（异常、唯一索引冲突或者提交失败）时要移除，否则用户再也买不了
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    stringRedisTemplate.opsForSet().remove(orderKey, member);
+                }
+            }
+        });
 
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
                 .eq("voucher_id", voucherId).gt("stock", 0)
                 .update();
         if (!success) {
+            stringRedisTemplate.opsForSet().remove(orderKey, member);
+            seckillVoucherService.markSoldOut(voucherId);
             return Result.fail("已经被抢光啦!下次再来吧!");
         }
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = idWorker.nextId("order");
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        save(voucherOrder);
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            // 用户集合丢失时由唯一索引(user_id, voucher_id)兜底，回滚扣减的库存
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("您已经购买过了！傻逼!还想占便宜？");
+        }
+        addShopSold(voucherId, 1);
         return Result.ok(orderId);
     }
 
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        // 一人一单已经在Redis中判断过，这里不再count查询，重复订单由唯一索引(user_id, voucher_id)拦截，
+        // 抛出的DuplicateKeyException会回滚扣减的库存
+        Long voucherId = voucherOrder.getVoucherId();
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherId).gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("库存不足, voucherId: {}", voucherId);
+            return false;
+        }
+        save(voucherOrder);
+        addShopSold(voucherId, 1);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public boolean createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券统计本批次要扣减的库存
+        Map<Long, Integer> stockCounts = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            stockCounts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        // 2.每张优惠券只扣减一次库存 stock = stock - k
+        for (Map.Entry<Long, Integer> entry : stockCounts.entrySet()) {
+            int count = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", entry.getKey()).ge("stock", count)
+                    .update();
+            if (!success) {
+                log.error("库存不足, voucherId: {}, count: {}", entry.getKey(), count);
+                TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+                return false;
+            }
+        }
+        // 3.一条多行INSERT写入全部订单
+        getBaseMapper().insertBatch(voucherOrders);
+        // 4.同一个店铺的销量在本批次只更新一次
+        Map<Long, Integer> soldCounts = new HashMap<>();
+        stockCounts.forEach((voucherId, count) -> {
+            Long shopId = shopOf(voucherId);
+            if (shopId != null) {
+                soldCounts.merge(shopId, count, Integer::sum);
+            }
+        });
+        soldCounts.forEach((shopId, count) -> shopService.incrementCounter(shopId, "sold", count));
+        return true;
+    }
+
+    /**
+     * 在下单的事务中累加店铺销量，事务提交后更新缓存
+     */
+    private void addShopSold(Long voucherId, int count) {
+        Long shopId = shopOf(voucherId);
+        if (shopId != null) {
+            shopService.incrementCounter(shopId, "sold", count);
+        }
+    }
+
+    private Long shopOf(Long voucherId) {
+        Long shopId = voucherShops.get(voucherId);
+        if (shopId == null) {
+            Voucher voucher = voucherService.getById(voucherId);
+            if (voucher == null || voucher.getShopId() == null) {
+                return null;
+            }
+            shopId = voucher.getShopId();
+            voucherShops.put(voucherId, shopId);
+        }
+        return shopId;
+    }
+
+    @Override
+    public Map<String, Object> queryOrderStreamStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Long length = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM_KEY);
+        long streamLength = length == null ? 0 : length;
+        stats.put("length", streamLength);
+        Long deadLetters = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DEAD_LETTER_KEY);
+        stats.put("deadLetters", deadLetters == null ? 0 : deadLetters);
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM_KEY);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if (!SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                continue;
+            }
+            stats.put("consumers", group.consumerCount());
+            // 已投递但还没有ACK的消息
+            stats.put("pending", group.pendingCount());
+            stats.put("lastDeliveredId", group.lastDeliveredId());
+            // 还没有投递给任何消费者的消息，Redis 7以上XINFO GROUPS直接返回lag；
+            // 低版本时ACK过的消息都已经删除，队列中只剩未投递和pending的消息，两者相减即可
+            Object lag = group.getRaw().get("lag");
+            stats.put("lag", lag != null ? lag : Math.max(0, streamLength - group.pendingCount()));
+        }
+        return stats;
+    }
+
 }
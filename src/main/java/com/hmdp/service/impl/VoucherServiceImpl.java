@@ -1,17 +1,40 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopVoucherCatalog;
 import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_TTL;
 
 /**
  * <p>
@@ -21,25 +44,78 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockStore seckillStockStore;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    /**
+     * 预热未来多少秒内开始的秒杀券
+     */
+    @Value("${hmdp.seckill.preheat.window:600}")
+    private long preheatWindowSeconds;
+
+    private static final int BUYER_BATCH_SIZE = 1000;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.查询缓存的优惠券目录，未命中时查询数据库。重建锁是lock:cache:voucher:shop:{shopId}，不和店铺详情的重建抢锁
+        ShopVoucherCatalog catalog = cacheClient.queryWithMutex(CACHE_SHOP_VOUCHER_KEY, shopId, ShopVoucherCatalog.class,
+                id -> new ShopVoucherCatalog(id, getBaseMapper().queryVoucherOfShop(id)),
+                CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        if (catalog == null) {
+            return Result.ok(new ArrayList<>());
+        }
+        // 2.缓存中的对象是共享的，复制一份再叠加库存
+        List<Voucher> vouchers = catalog.getVouchers().stream()
+                .map(voucher -> BeanUtil.copyProperties(voucher, Voucher.class))
+                .collect(Collectors.toList());
+        // 3.秒杀券的库存一次MGET从Redis读取，库存还没有预热的券沿用数据库中的值
+        List<Long> seckillIds = vouchers.stream()
+                .filter(voucher -> voucher.getBeginTime() != null)
+                .map(Voucher::getId)
+                .collect(Collectors.toList());
+        if (!seckillIds.isEmpty()) {
+            Map<Long, Long> stocks = seckillStockStore.stocks(seckillIds);
+            for (Voucher voucher : vouchers) {
+                Long stock = stocks.get(voucher.getId());
+                if (stock != null) {
+                    voucher.setStock(stock.intValue());
+                }
+            }
+        }
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 提交后删除店铺的优惠券目录缓存
+        cacheOutboxService.record(CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
+        // 提交后删除店铺的优惠券目录缓存
+        cacheOutboxService.record(CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
@@ -47,6 +123,71 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 提交后再保存秒杀库存到Redis中，事务回滚时不会留下一张数据库里不存在的券
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                seckillStockStore.initStock(voucher.getId(), voucher.getStock());
+                // 新券还没有订单，直接标记下单用户已加载
+                stringRedisTemplate.opsForSet().add(
+                        SeckillStockStore.orderKey(voucher.getId()), SeckillStockStore.BUYERS_LOADED);
+                seckillVoucherService.primeVoucherState(seckillVoucher);
+            }
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval:60000}")
+    public void schedulePreheat() {
+        List<Map<String, Object>> report = preheatSeckillVouchers();
+        if (!report.isEmpty()) {
+            log.info("秒杀券预热完成: {}", report);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> preheatSeckillVouchers() {
+        // 1.查询即将开始或者正在进行的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusSeconds(preheatWindowSeconds))
+                .ge("end_time", now)
+                .list();
+        List<Map<String, Object>> report = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            // 2.本地缓存秒杀时间窗口
+            seckillVoucherService.primeVoucherState(voucher);
+            // 3.库存不存在时写入Redis
+            boolean stockLoaded = seckillStockStore.initStockIfAbsent(voucherId, voucher.getStock());
+            // 4.库存是刚写入的或者下单用户集合没有加载完成标记时，用已有订单重建一人一单集合
+            long buyers = 0;
+            String orderKey = SeckillStockStore.orderKey(voucherId);
+            if (stockLoaded || !Boolean.TRUE.equals(
+                    stringRedisTemplate.opsForSet().isMember(orderKey, SeckillStockStore.BUYERS_LOADED))) {
+                buyers = loadBuyers(voucherId, orderKey);
+            }
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("voucherId", voucherId);
+            item.put("beginTime", voucher.getBeginTime());
+            item.put("stockLoaded", stockLoaded);
+            item.put("stock", seckillStockStore.stock(voucherId));
+            item.put("buyersLoaded", buyers);
+            report.add(item);
+        }
+        return report;
+    }
+
+    private long loadBuyers(Long voucherId, String orderKey) {
+        List<Object> userIds = voucherOrderMapper.selectObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId));
+        for (int i = 0; i < userIds.size(); i += BUYER_BATCH_SIZE) {
+            String[] members = userIds.subList(i, Math.min(i + BUYER_BATCH_SIZE, userIds.size()))
+                    .stream().map(String::valueOf).toArray(String[]::new);
+            stringRedisTemplate.opsForSet().add(orderKey, members);
+        }
+        // 全部写入后再加标记，加载到一半失败时下次预热会重新加载
+        stringRedisTemplate.opsForSet().add(orderKey, SeckillStockStore.BUYERS_LOADED);
+        return userIds.size();
     }
 
 
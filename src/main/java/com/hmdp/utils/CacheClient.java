@@ -1,33 +1,236 @@
 package com.hmdp.utils;
 
 
-import cn.hutool.core.lang.func.Func;
+import cn.hutool.core.bean.BeanDesc;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.PropDesc;
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.ReflectUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.utils.codec.BinaryCacheCodec;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.CacheEntry;
+import com.hmdp.utils.codec.CacheSchemas;
+import com.hmdp.utils.codec.JsonCacheCodec;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
 @Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final IdBloomFilter idBloomFilter;
+    private final CacheRebuildExecutor cacheRebuildExecutor;
+    private final HotKeyDetector hotKeyDetector;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 一级缓存：进程内缓存反序列化好的对象，按字节预算淘汰（W-TinyLFU），热点数据不用再访问Redis和解析JSON
+     */
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+    @Value("${hmdp.cache.local.max-bytes:67108864}")
+    private long localMaxBytes;
+    @Value("${hmdp.cache.local.ttl:60}")
+    private long localTtlSeconds;
+    private Cache<String, LocalValue> localCache;
+    /**
+     * 本地空值缓存：记住数据库中不存在的key，枚举不存在的id时不再访问Redis。有效期短，新增数据时随失效广播删除
+     */
+    @Value("${hmdp.cache.negative.enabled:true}")
+    private boolean negativeEnabled;
+    @Value("${hmdp.cache.negative.max-size:100000}")
+    private long negativeMaxSize;
+    @Value("${hmdp.cache.negative.ttl:30}")
+    private long negativeTtlSeconds;
+    private Cache<String, Boolean> negativeCache;
+    /**
+     * 热点key的本地缓存：探测到的热点key自动提升到这里，短时间内不再访问Redis。
+     * 和一级缓存分开，一级缓存关闭或者热点值被挤出时仍然生效，Hash模式的key也会提升
+     */
+    @Value("${hmdp.cache.hotkey.local-max-size:1000}")
+    private long hotMaxSize;
+    @Value("${hmdp.cache.hotkey.local-ttl:5}")
+    private long hotTtlSeconds;
+    private Cache<String, CacheEntry<?>> hotCache;
+    /**
+     * 当前节点的标识，收到自己广播的失效消息时跳过
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    /**
+     * 写入Redis时使用的编码：binary 或 json。读取时按数据头自动识别，两种格式可以混存
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+    private CacheCodec codec;
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec binaryCodec = new BinaryCacheCodec(CacheSchemas.all());
+
+    /**
+     * 过期时间随机增加的比例，例如0.1表示在ttl到1.1倍ttl之间随机，避免同时写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    /**
+     * XFetch提前刷新：过期前按上次重建耗时加权的概率提前在后台重建，beta越大越早刷新
+     */
+    @Value("${hmdp.cache.xfetch.enabled:true}")
+    private boolean xfetchEnabled;
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder localMisses = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder decodeFailures = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder hotHits = new LongAdder();
+
+    /**
+     * 本节点正在重建的key，同一个key的并发请求共享一个结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 本节点在等待重建的key，本节点写入或者收到其他节点的写入广播时完成
+     */
+    private final Map<String, CompletableFuture<Void>> remoteWrites = new ConcurrentHashMap<>();
+    private static final long REMOTE_WAIT_MILLIS = 50;
+    private final LongAdder singleFlightWaits = new LongAdder();
+
+    /**
+     * Redis中缓存的空值
+     */
+    private static final CacheEntry<?> NULL_ENTRY = new CacheEntry<>(null, 0, false, 0);
+
+    /**
+     * Hash存储模式：一个实体存成一个Redis Hash，每列一个字段，key为 前缀 + id + HASH_KEY_SUFFIX。
+     * 标记字段为1表示存在的实体，为0表示数据库中不存在
+     */
+    private static final String HASH_KEY_SUFFIX = ":h";
+    private static final String HASH_MARK_FIELD = "@";
+    private static final DefaultRedisScript<Long> HINCR_SCRIPT;
+    static {
+        HINCR_SCRIPT = new DefaultRedisScript<>();
+        HINCR_SCRIPT.setLocation(new ClassPathResource("hincr_if_exists.lua"));
+        HINCR_SCRIPT.setResultType(Long.class);
+    }
+    private static final byte[] HASH_WRITE_SCRIPT;
+    static {
+        try {
+            HASH_WRITE_SCRIPT = StreamUtils.copyToByteArray(new ClassPathResource("hash_write.lua").getInputStream());
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                       IdBloomFilter idBloomFilter, CacheRebuildExecutor cacheRebuildExecutor,
+                       HotKeyDetector hotKeyDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.idBloomFilter = idBloomFilter;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @PostConstruct
+    private void init() {
+        codec = "json".equalsIgnoreCase(codecName) ? jsonCodec : binaryCodec;
+        localCache = Caffeine.newBuilder()
+                .maximumWeight(localMaxBytes)
+                .weigher((String key, LocalValue value) -> key.length() * 2 + value.weight)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        negativeCache = Caffeine.newBuilder()
+                .maximumSize(negativeMaxSize)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        hotCache = Caffeine.newBuilder()
+                .maximumSize(hotMaxSize)
+                .expireAfterWrite(hotTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        // 订阅其他节点广播的缓存失效消息，消息格式：节点id\nkey1\nkey2...
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            List<String> lines = StrUtil.split(new String(message.getBody(), StandardCharsets.UTF_8), '\n');
+            if (lines.isEmpty() || nodeId.equals(lines.get(0))) {
+                return;
+            }
+            List<String> keys = lines.subList(1, lines.size());
+            localCache.invalidateAll(keys);
+            negativeCache.invalidateAll(keys);
+            hotCache.invalidateAll(keys);
+            // 其他节点重建了缓存，唤醒本节点等待这个key的请求
+            completeRemoteWrites(keys);
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 唤醒本节点等待这些key重建的请求
+     */
+    private void completeRemoteWrites(Collection<String> keys) {
+        for (String key : keys) {
+            CompletableFuture<Void> written = remoteWrites.remove(key);
+            if (written != null) {
+                written.complete(null);
+            }
+        }
+    }
+
+    /**
+     * 重建锁跟着缓存key走，不同类型的缓存即使id相同也不会互相抢锁
+     */
+    private static String lockKey(String key) {
+        return "lock:" + key;
     }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -35,101 +238,757 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 一级缓存中的值，weight是按编码后长度估算的占用字节数
+     */
+    private static class LocalValue {
+        private final CacheEntry<?> entry;
+        private final int weight;
+
+        LocalValue(CacheEntry<?> entry, int encodedLength) {
+            this.entry = entry;
+            this.weight = encodedLength * 2 + 64;
+        }
+    }
+
+    private void putLocal(String key, CacheEntry<?> entry, int encodedLength) {
+        negativeCache.invalidate(key);
+        hotCache.invalidate(key);
+        if (localEnabled && entry.getData() != null) {
+            localCache.put(key, new LocalValue(entry, encodedLength));
+        }
+    }
+
+    /**
+     * 记录访问次数，热点key先查热点缓存，再查一级缓存和Redis，查到后提升到热点缓存
+     * @return 未命中返回null，命中缓存的空值返回NULL_ENTRY
+     */
+    private <R> CacheEntry<R> lookup(String key, Class<R> type) {
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            CacheEntry<R> promoted = getHot(key, type);
+            if (promoted != null) {
+                return promoted;
+            }
+        }
+        CacheEntry<R> entry = lookupTiers(key, type);
+        if (hot && entry != null && entry != NULL_ENTRY) {
+            hotCache.put(key, entry);
+        }
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CacheEntry<R> getHot(String key, Class<R> type) {
+        CacheEntry<?> promoted = hotCache.getIfPresent(key);
+        if (promoted != null && type.isInstance(promoted.getData())) {
+            hotHits.increment();
+            return (CacheEntry<R>) promoted;
+        }
+        return null;
+    }
+
+    /**
+     * 先查一级缓存，再查Redis
+     */
+    @SuppressWarnings("unchecked")
+    private <R> CacheEntry<R> lookupTiers(String key, Class<R> type) {
+        if (isNegative(key)) {
+            return (CacheEntry<R>) NULL_ENTRY;
+        }
+        if (localEnabled) {
+            LocalValue value = localCache.getIfPresent(key);
+            if (value != null && type.isInstance(value.entry.getData())) {
+                localHits.increment();
+                return (CacheEntry<R>) value.entry;
+            }
+            localMisses.increment();
+        }
+        CacheEntry<R> entry = lookupRedis(key, type);
+        if (entry != null && entry != NULL_ENTRY) {
+            redisHits.increment();
+        } else {
+            redisMisses.increment();
+        }
+        if (entry == NULL_ENTRY) {
+            putNegative(key);
+        }
+        return entry;
+    }
+
+    private boolean isNegative(String key) {
+        if (negativeEnabled && negativeCache.getIfPresent(key) != null) {
+            negativeHits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void putNegative(String key) {
+        if (negativeEnabled) {
+            localCache.invalidate(key);
+            hotCache.invalidate(key);
+            negativeCache.put(key, Boolean.TRUE);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CacheEntry<R> lookupRedis(String key, Class<R> type) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bytes == null) {
+            return null;
+        }
+        return bytes.length == 0 ? (CacheEntry<R>) NULL_ENTRY : decode(key, bytes, type);
+    }
+
+    /**
+     * 按数据头识别格式并解码，解码成功的值放入一级缓存。不认识的格式返回null，按未命中处理
+     */
+    private <R> CacheEntry<R> decode(String key, byte[] bytes, Class<R> type) {
+        CacheEntry<R> entry;
+        try {
+            entry = BinaryCacheCodec.isBinary(bytes) ? binaryCodec.decode(bytes, type) : jsonCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解码失败, key: {}", key, e);
+            entry = null;
+        }
+        if (entry == null || entry.getData() == null) {
+            decodeFailures.increment();
+            return null;
+        }
+        putLocal(key, entry, bytes.length);
+        return entry;
+    }
+
+    /**
+     * 给过期时间加上随机抖动
+     */
+    private long jitter(long ttlMillis) {
+        if (ttlJitter <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * 判断是否需要重建：逻辑过期的数据已经过期，或者XFetch决定提前刷新。
+     * XFetch：now - rebuildMillis * beta * ln(rand) >= expireAt，越接近过期、重建越慢，提前刷新的概率越大
+     */
+    private boolean shouldRefresh(CacheEntry<?> entry, long now) {
+        if (entry.getExpireAt() <= 0) {
+            return false;
+        }
+        if (entry.isLogicalExpire() && entry.getExpireAt() <= now) {
+            return true;
+        }
+        if (!xfetchEnabled || entry.getRebuildMillis() <= 0) {
+            return false;
+        }
+        double gap = -entry.getRebuildMillis() * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (now + gap < entry.getExpireAt()) {
+            return false;
+        }
+        earlyRefreshes.increment();
+        return true;
+    }
+
+    private void write(String key, Object value, long ttlMillis, boolean logicalExpire, int rebuildMillis) {
+        long ttl = jitter(ttlMillis);
+        CacheEntry<Object> entry = new CacheEntry<>(value, System.currentTimeMillis() + ttl, logicalExpire, rebuildMillis);
+        byte[] bytes = codec.encode(entry);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = logicalExpire ? Expiration.persistent() : Expiration.milliseconds(ttl);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, bytes, expiration, RedisStringCommands.SetOption.upsert()));
+        putLocal(key, entry, bytes.length);
+        publishInvalidation(Collections.singletonList(key));
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        write(key, value, unit.toMillis(time), false, 0);
     }
 
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        write(key, value, unit.toMillis(time), true, 0);
+    }
+
+    /**
+     * 用一个pipeline按逻辑过期写入一批缓存，用于预热
+     */
+    public <R, ID> void setManyWithLogicalExpire(String keyPrefix, Map<ID, R> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        writeMany(keyPrefix, new ArrayList<>(values.keySet()), values, unit.toMillis(time), true, 0);
+    }
+
+    /**
+     * 删除缓存，所有节点的一级缓存都会失效
+     */
+    public void evict(String... keys) {
+        List<String> keyList = Arrays.asList(keys);
+        stringRedisTemplate.delete(keyList);
+        localCache.invalidateAll(keyList);
+        negativeCache.invalidateAll(keyList);
+        hotCache.invalidateAll(keyList);
+        publishInvalidation(keyList);
+    }
+
+    /**
+     * 缓存不存在的key，同样广播出去，唤醒其他节点等待重建的请求
+     */
+    private void setNull(String key) {
+        stringRedisTemplate.opsForValue().set(key, "", jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+        localCache.invalidate(key);
+        putNegative(key);
+        publishInvalidation(Collections.singletonList(key));
+    }
+
+    private void publishInvalidation(Collection<String> keys) {
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + "\n" + String.join("\n", keys));
+        // 广播不会发回本节点，本节点的异步刷新或批量查询写入的key要在这里唤醒等待的请求，否则它们要等满REMOTE_WAIT_MILLIS
+        completeRemoteWrites(keys);
+    }
+
+    /**
+     * 查询数据库并写入缓存，同时记录重建耗时，数据库中不存在时缓存空值
+     */
+    private <R, ID> R load(String key, ID id, Function<ID, R> dbFallback, long ttlMillis, boolean logicalExpire) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            setNull(key);
+            return null;
+        }
+        write(key, r, ttlMillis, logicalExpire, (int) (System.currentTimeMillis() - begin));
+        return r;
+    }
+
+    /**
+     * 在后台重建缓存，本节点按key去重，执行时再用互斥锁保证只有一个节点在重建
+     */
+    private <R, ID> void refreshAsync(String key, ID id, Function<ID, R> dbFallback, long ttlMillis, boolean logicalExpire) {
+        cacheRebuildExecutor.submit(key, () -> {
+            String lockKey = lockKey(key);
+            if (!tryLock(lockKey)) {
+                return;
+            }
+            try {
+                load(key, id, dbFallback, ttlMillis, logicalExpire);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * 各级缓存的命中统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localEnabled", localEnabled);
+        stats.put("localHits", localHits.sum());
+        stats.put("localMisses", localMisses.sum());
+        stats.put("localSize", localCache.estimatedSize());
+        stats.put("redisHits", redisHits.sum());
+        stats.put("redisMisses", redisMisses.sum());
+        stats.put("codec", codec == jsonCodec ? "json" : "binary");
+        stats.put("decodeFailures", decodeFailures.sum());
+        stats.put("singleFlightWaits", singleFlightWaits.sum());
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("negativeHits", negativeHits.sum());
+        stats.put("negativeSize", negativeCache.estimatedSize());
+        stats.put("hotHits", hotHits.sum());
+        stats.put("hotSize", hotCache.estimatedSize());
+        stats.put("rebuild", cacheRebuildExecutor.getStats());
+        return stats;
     }
 
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
                                          Function<ID,R> dbFallback,Long time, TimeUnit unit) {
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            //布隆过滤器判断id不存在，不再查询Redis和数据库
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json,type);
+        CacheEntry<R> entry = lookup(key, type);
+        if(entry == NULL_ENTRY) {
+            //缓存的空值
+            return null;
+        }
+        if(entry != null) {
+            if(shouldRefresh(entry, System.currentTimeMillis())) {
+                refreshAsync(key, id, dbFallback, unit.toMillis(time), false);
+            }
+            return entry.getData();
         }
-        if(json != null) {
+        return load(key, id, dbFallback, unit.toMillis(time), false);
+    }
+
+
+    /**
+     * 批量查询，一次MGET查Redis，未命中的id用一次IN查询加载，再用一个pipeline写回。
+     * 数据库中不存在的id缓存空值，和queryWithPassThrough一致
+     * @param dbFallback 根据一批id查询数据库，返回id到对象的映射
+     * @return 按ids顺序的id到对象的映射，不包含不存在的id
+     */
+    public <R, ID> Map<ID, R> queryMany(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                       Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return queryMany(keyPrefix, ids, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存，过期的数据先返回旧值，再异步批量重建
+     */
+    public <R, ID> Map<ID, R> queryManyWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        return queryMany(keyPrefix, ids, type, dbFallback, time, unit, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R, ID> Map<ID, R> queryMany(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                        Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit,
+                                        boolean logicalExpire) {
+        long ttlMillis = unit.toMillis(time);
+        Map<ID, R> result = new LinkedHashMap<>();
+        // 1.布隆过滤器和一级缓存
+        List<ID> remoteIds = new ArrayList<>();
+        List<ID> refreshIds = new ArrayList<>();
+        Set<ID> hotIds = new HashSet<>();
+        long now = System.currentTimeMillis();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            if (!idBloomFilter.mightContain(keyPrefix, id) || isNegative(key)) {
+                continue;
+            }
+            // 先占位，保证返回结果按ids的顺序
+            result.put(id, null);
+            boolean hot = hotKeyDetector.record(key);
+            CacheEntry<R> entry = hot ? getHot(key, type) : null;
+            if (entry == null) {
+                LocalValue local = localEnabled ? localCache.getIfPresent(key) : null;
+                if (local == null || !type.isInstance(local.entry.getData())) {
+                    if (localEnabled) {
+                        localMisses.increment();
+                    }
+                    if (hot) {
+                        hotIds.add(id);
+                    }
+                    remoteIds.add(id);
+                    continue;
+                }
+                localHits.increment();
+                entry = (CacheEntry<R>) local.entry;
+                if (hot) {
+                    hotCache.put(key, entry);
+                }
+            }
+            result.put(id, entry.getData());
+            if (shouldRefresh(entry, now)) {
+                refreshIds.add(id);
+            }
+        }
+        // 2.一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            byte[][] rawKeys = new byte[remoteIds.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = (keyPrefix + remoteIds.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes != null && bytes.length == 0) {
+                    // 缓存的空值
+                    redisMisses.increment();
+                    putNegative(keyPrefix + id);
+                    continue;
+                }
+                CacheEntry<R> entry = bytes == null ? null : decode(keyPrefix + id, bytes, type);
+                if (entry == null) {
+                    redisMisses.increment();
+                    missIds.add(id);
+                    continue;
+                }
+                redisHits.increment();
+                result.put(id, entry.getData());
+                if (hotIds.contains(id)) {
+                    hotCache.put(keyPrefix + id, entry);
+                }
+                if (shouldRefresh(entry, now)) {
+                    refreshIds.add(id);
+                }
+            }
+        }
+        // 3.未命中的id一次查询数据库，一个pipeline写回
+        if (!missIds.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            int rebuildMillis = (int) (System.currentTimeMillis() - begin);
+            for (ID id : missIds) {
+                result.put(id, loaded == null ? null : loaded.get(id));
+            }
+            writeMany(keyPrefix, missIds, loaded, ttlMillis, logicalExpire, rebuildMillis);
+        }
+        // 4.过期或者需要提前刷新的数据异步批量重建。本节点按单个key去重，其他请求已经在重建的id不再重复提交；
+        // 每个id仍然用互斥锁保证只有一个节点重建
+        if (!refreshIds.isEmpty()) {
+            Map<String, ID> refreshKeys = new LinkedHashMap<>();
+            for (ID id : refreshIds) {
+                refreshKeys.put(keyPrefix + id, id);
+            }
+            cacheRebuildExecutor.submitAll(refreshKeys, claimedIds -> {
+                List<ID> lockedIds = new ArrayList<>();
+                for (ID id : claimedIds) {
+                    if (tryLock(lockKey(keyPrefix + id))) {
+                        lockedIds.add(id);
+                    }
+                }
+                if (lockedIds.isEmpty()) {
+                    return;
+                }
+                try {
+                    long begin = System.currentTimeMillis();
+                    Map<ID, R> loaded = dbFallback.apply(lockedIds);
+                    int rebuildMillis = (int) (System.currentTimeMillis() - begin);
+                    writeMany(keyPrefix, lockedIds, loaded, ttlMillis, logicalExpire, rebuildMillis);
+                } finally {
+                    lockedIds.forEach(id -> unlock(lockKey(keyPrefix + id)));
+                }
+            });
+        }
+        result.values().removeIf(Objects::isNull);
+        return result;
+    }
+
+    /**
+     * 用一个pipeline写入一批缓存，loaded中没有的id写入空值
+     */
+    private <R, ID> void writeMany(String keyPrefix, List<ID> ids, Map<ID, R> loaded, long ttlMillis,
+                                   boolean logicalExpire, int rebuildMillis) {
+        long now = System.currentTimeMillis();
+        long nullTtl = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        List<String> keys = new ArrayList<>(ids.size());
+        List<byte[]> values = new ArrayList<>(ids.size());
+        List<Expiration> expirations = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            R r = loaded == null ? null : loaded.get(id);
+            keys.add(key);
+            if (r == null) {
+                values.add(new byte[0]);
+                expirations.add(Expiration.milliseconds(jitter(nullTtl)));
+                putNegative(key);
+                continue;
+            }
+            long ttl = jitter(ttlMillis);
+            CacheEntry<R> entry = new CacheEntry<>(r, now + ttl, logicalExpire, rebuildMillis);
+            byte[] bytes = codec.encode(entry);
+            values.add(bytes);
+            expirations.add(logicalExpire ? Expiration.persistent() : Expiration.milliseconds(ttl));
+            putLocal(key, entry, bytes.length);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                connection.set(keys.get(i).getBytes(StandardCharsets.UTF_8), values.get(i), expirations.get(i),
+                        RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+        publishInvalidation(keys);
+    }
+
+    public static String hashKey(String keyPrefix, Object id) {
+        return keyPrefix + id + HASH_KEY_SUFFIX;
+    }
+
+    /**
+     * 按Hash存储模式查询完整实体。Hash模式只有热点key经过一级缓存，计数字段原地HINCRBY后各节点读到的都是最新值，
+     * 不需要为了计数变化失效整条缓存
+     */
+    public <R, ID> R queryHash(String keyPrefix, ID id, Class<R> type,
+                               Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return queryHashFields(keyPrefix, id, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 按Hash存储模式只查询需要的字段（HMGET），返回的对象只填充这些字段。
+     * 未命中时从数据库加载完整实体写入缓存，并返回完整实体
+     * @param fields 需要的属性名，为空时查询全部字段
+     */
+    public <R, ID> R queryHashFields(String keyPrefix, ID id, Class<R> type,
+                                     Function<ID, R> dbFallback, Long time, TimeUnit unit, String... fields) {
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            //布隆过滤器判断id不存在，不再查询Redis和数据库
             return null;
         }
-        R r = dbFallback.apply(id);
-        if(r == null) {
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+        String key = hashKey(keyPrefix, id);
+        // 只有查询完整实体时才使用热点缓存
+        boolean hot = fields.length == 0 && hotKeyDetector.record(key);
+        if (hot) {
+            CacheEntry<R> promoted = getHot(key, type);
+            if (promoted != null) {
+                return promoted.getData();
+            }
+        }
+        if (isNegative(key)) {
             return null;
         }
-        this.set(key,r,time,unit);
-        return r;
+        Map<Object, Object> hash;
+        if (fields.length == 0) {
+            hash = stringRedisTemplate.opsForHash().entries(key);
+        } else {
+            List<Object> names = new ArrayList<>(fields.length + 1);
+            names.add(HASH_MARK_FIELD);
+            names.addAll(Arrays.asList(fields));
+            List<Object> values = stringRedisTemplate.opsForHash().multiGet(key, names);
+            hash = new HashMap<>(names.size() * 2);
+            for (int i = 0; i < names.size(); i++) {
+                if (values.get(i) != null) {
+                    hash.put(names.get(i), values.get(i));
+                }
+            }
+        }
+        Object mark = hash.get(HASH_MARK_FIELD);
+        if (mark != null) {
+            if ("1".equals(mark)) {
+                redisHits.increment();
+                R r = fromHash(hash, type);
+                if (hot) {
+                    hotCache.put(key, new CacheEntry<>(r, 0, false, 0));
+                }
+                return r;
+            }
+            redisMisses.increment();
+            putNegative(key);
+            return null;
+        }
+        redisMisses.increment();
+        long ttlMillis = unit.toMillis(time);
+        return coalesce(key, type, () -> {
+            R r = dbFallback.apply(id);
+            writeHashes(Collections.singletonList(key), Collections.singletonList(r), ttlMillis);
+            return r;
+        });
     }
 
+    /**
+     * 用一个pipeline按Hash存储模式写入一批实体，用于预热
+     */
+    public <R, ID> void setManyHash(String keyPrefix, Map<ID, R> values, Long time, TimeUnit unit) {
+        List<String> keys = new ArrayList<>(values.size());
+        List<R> beans = new ArrayList<>(values.size());
+        values.forEach((id, r) -> {
+            keys.add(hashKey(keyPrefix, id));
+            beans.add(r);
+        });
+        writeHashes(keys, beans, unit.toMillis(time));
+    }
+
+    /**
+     * 原地增加缓存中的计数字段，缓存不存在或者缓存的是空值时不处理
+     * @return 增加后的值，缓存不存在时返回null
+     */
+    public Long incrementHashField(String keyPrefix, Object id, String field, long delta) {
+        // 计数变化不广播，其他节点热点缓存中的值最多落后local-ttl秒
+        hotCache.invalidate(hashKey(keyPrefix, id));
+        return stringRedisTemplate.execute(HINCR_SCRIPT, Collections.singletonList(hashKey(keyPrefix, id)),
+                HASH_MARK_FIELD, field, String.valueOf(delta));
+    }
+
+    /**
+     * 一个pipeline中对每个key执行一次hash_write.lua，DEL、HMSET、PEXPIRE在脚本中原子执行，
+     * 读取方不会看到删除后还没写入的空Hash。为null的实体只写标记字段0，按空值的有效期过期
+     */
+    private <R> void writeHashes(List<String> keys, List<R> beans, long ttlMillis) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        long nullTtl = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] rawKey = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                R r = beans.get(i);
+                Map<byte[], byte[]> hash = toHash(r);
+                // KEYS[1]: 缓存key，ARGV[1]: 过期毫秒数，ARGV[2..]: 字段和值
+                byte[][] keysAndArgs = new byte[2 + hash.size() * 2][];
+                keysAndArgs[0] = rawKey;
+                keysAndArgs[1] = String.valueOf(jitter(r == null ? nullTtl : ttlMillis)).getBytes(StandardCharsets.UTF_8);
+                int j = 2;
+                for (Map.Entry<byte[], byte[]> field : hash.entrySet()) {
+                    keysAndArgs[j++] = field.getKey();
+                    keysAndArgs[j++] = field.getValue();
+                }
+                connection.eval(HASH_WRITE_SCRIPT, ReturnType.INTEGER, 1, keysAndArgs);
+            }
+            return null;
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            if (beans.get(i) == null) {
+                putNegative(keys.get(i));
+            } else {
+                negativeCache.invalidate(keys.get(i));
+            }
+        }
+    }
+
+    private static Map<byte[], byte[]> toHash(Object bean) {
+        Map<byte[], byte[]> hash = new HashMap<>();
+        hash.put(HASH_MARK_FIELD.getBytes(StandardCharsets.UTF_8),
+                (bean == null ? "0" : "1").getBytes(StandardCharsets.UTF_8));
+        if (bean == null) {
+            return hash;
+        }
+        for (PropDesc prop : BeanUtil.getBeanDesc(bean.getClass()).getProps()) {
+            Object value = prop.getValue(bean);
+            if (value != null) {
+                // LocalDateTime.toString()是ISO格式，读取时用LocalDateTime.parse还原
+                hash.put(prop.getFieldName().getBytes(StandardCharsets.UTF_8),
+                        value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return hash;
+    }
+
+    private static <R> R fromHash(Map<Object, Object> hash, Class<R> type) {
+        R bean = ReflectUtil.newInstance(type);
+        BeanDesc desc = BeanUtil.getBeanDesc(type);
+        hash.forEach((name, value) -> {
+            PropDesc prop = desc.getProp((String) name);
+            if (prop == null) {
+                return;
+            }
+            Class<?> fieldClass = prop.getFieldClass();
+            String text = (String) value;
+            prop.setValue(bean, fieldClass == LocalDateTime.class ? LocalDateTime.parse(text) : Convert.convert(fieldClass, text));
+        });
+        return bean;
+    }
 
     public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type,
                                            Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            //布隆过滤器判断id不存在，不再查询Redis和数据库
+            return null;
+        }
         String key = keyPrefix +id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(json)) {
+        CacheEntry<R> entry = lookup(key, type);
+        if(entry == NULL_ENTRY) {
             return null;
         }
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            return r;
+        if(entry == null) {
+            //缓存未预热或者格式不认识（例如滚动发布时新版本写入的数据），合并请求后同步重建
+            return coalesce(key, type, () -> loadWithMutex(key, id, type, dbFallback, unit.toMillis(time), true));
         }
-        String lockKey = LOCK_SHOP_KEY +id;
-        boolean  gotLock = tryLock(lockKey);
-        if(gotLock) {
-            CACHE_REBUILD_EXECUTOR.submit(()-> {
-                try {
-                    R newR = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,newR,time,unit);
-                }catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unlock(lockKey);
-                }
-            });
+        //过期或者XFetch决定提前刷新时，先返回旧值，后台重建
+        if(shouldRefresh(entry, System.currentTimeMillis())) {
+            refreshAsync(key, id, dbFallback, unit.toMillis(time), true);
         }
-        return r;
+        return entry.getData();
     }
 
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type,
                                     Function<ID,R> dbFallback, Long time, TimeUnit unit)  {
-        String key = keyPrefix + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, type);
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            //布隆过滤器判断id不存在，不再查询Redis和数据库
+            return null;
         }
-        if(shopJson != null) {
+        String key = keyPrefix + id;
+        CacheEntry<R> entry = lookup(key, type);
+        if(entry == NULL_ENTRY) {
             return null;
         }
+        if(entry != null) {
+            if(shouldRefresh(entry, System.currentTimeMillis())) {
+                refreshAsync(key, id, dbFallback, unit.toMillis(time), false);
+            }
+            return entry.getData();
+        }
+        return coalesce(key, type, () -> loadWithMutex(key, id, type, dbFallback, unit.toMillis(time), false));
+    }
 
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+    /**
+     * 同一个节点上同一个key并发未命中时只放一个请求去竞争互斥锁，其余请求等待它的结果
+     */
+    private <R> R coalesce(String key, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+        if(existing != null) {
+            singleFlightWaits.increment();
+            return type.cast(awaitFlight(existing, key));
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            if(!isLock) {
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix,id,type,dbFallback,time,unit);
+            R r = loader.get();
+            flight.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * 竞争Redis互斥锁并重建缓存。没抢到锁时等待其他节点写入缓存的广播消息，不再休眠后递归重试
+     */
+    private <R, ID> R loadWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                    long ttlMillis, boolean logicalExpire) {
+        String lockKey = lockKey(key);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (true) {
+            // 先登记再抢锁，避免抢锁失败后漏掉写入消息
+            CompletableFuture<Void> written = remoteWrites.computeIfAbsent(key, k -> new CompletableFuture<>());
+            if(tryLock(lockKey)) {
+                remoteWrites.remove(key, written);
+                try {
+                    // 拿到锁后再查一次，上一个持有锁的节点可能刚刚重建完
+                    CacheEntry<R> entry = lookupRedis(key, type);
+                    if(entry != null) {
+                        return entry.getData();
+                    }
+                    return load(key, id, dbFallback, ttlMillis, logicalExpire);
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            // 其他节点正在重建，收到广播立即醒来，消息丢失时最多等待REMOTE_WAIT_MILLIS后查Redis兜底
+            try {
+                written.get(REMOTE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            remoteWrites.remove(key, written);
+            CacheEntry<R> entry = lookupRedis(key, type);
+            if(entry != null) {
+                return entry.getData();
             }
-            r =  dbFallback.apply(id);
-            if(r == null) {
-                stringRedisTemplate.opsForValue().set(key,"", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("等待缓存重建超时: " + key);
             }
-            this.set(key,r ,time, unit);
+        }
+    }
+
+    private Object awaitFlight(CompletableFuture<Object> flight, String key) {
+        try {
+            return flight.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unlock(lockKey);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存重建超时: " + key);
         }
-        return r;
     }
 
 }
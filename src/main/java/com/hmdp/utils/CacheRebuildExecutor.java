@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 缓存重建线程池：队列有界，同一个key在本节点同时只排一个重建任务，批量重建也按单个key去重。
+ * 队列满时按配置丢弃（调用方继续返回旧值）或者由调用线程自己执行，大量key同时过期也不会无限占用内存。
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+    /**
+     * 队列满时的处理方式：drop 或 caller-runs
+     */
+    @Value("${hmdp.cache.rebuild.rejection:drop}")
+    private String rejection;
+    @Value("${hmdp.cache.rebuild.shutdown-timeout:5000}")
+    private long shutdownTimeoutMillis;
+
+    private ThreadPoolExecutor executor;
+    private boolean callerRuns;
+    /**
+     * 已经提交还没有执行完的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder callerRunCount = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final LongAccumulator maxLatencyMillis = new LongAccumulator(Math::max, 0);
+
+    @PostConstruct
+    private void init() {
+        callerRuns = "caller-runs".equalsIgnoreCase(rejection);
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建线程池关闭超时，丢弃剩余任务: {}", executor.shutdownNow().size());
+        }
+    }
+
+    /**
+     * 提交一个重建任务
+     * @param key 去重用的key，同一个key已经在排队或执行时直接忽略
+     * @return 任务是否被接受（异步执行或者由调用线程执行）
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        return execute(Collections.singletonList(key), task);
+    }
+
+    /**
+     * 提交一批重建任务，每个key单独去重：已经在排队或执行的key从这一批中去掉，剩下的仍然合并成一个任务执行
+     * @param items 去重用的key和对应的数据
+     * @param task 处理去重后剩下的数据
+     * @return 任务是否被接受，所有key都已经在重建时返回false
+     */
+    public <T> boolean submitAll(Map<String, T> items, Consumer<List<T>> task) {
+        List<String> keys = new ArrayList<>(items.size());
+        List<T> claimed = new ArrayList<>(items.size());
+        for (Map.Entry<String, T> item : items.entrySet()) {
+            if (pendingKeys.add(item.getKey())) {
+                keys.add(item.getKey());
+                claimed.add(item.getValue());
+            } else {
+                deduplicated.increment();
+            }
+        }
+        if (keys.isEmpty()) {
+            return false;
+        }
+        return execute(keys, () -> task.accept(claimed));
+    }
+
+    private boolean execute(List<String> keys, Runnable task) {
+        Runnable wrapped = () -> run(keys, task);
+        try {
+            executor.execute(wrapped);
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (callerRuns && !executor.isShutdown()) {
+                callerRunCount.increment();
+                wrapped.run();
+                return true;
+            }
+            pendingKeys.removeAll(keys);
+            dropped.increment();
+            log.debug("缓存重建队列已满，丢弃任务: {}", keys);
+            return false;
+        }
+    }
+
+    private void run(List<String> keys, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            completed.increment();
+        } catch (Exception e) {
+            failures.increment();
+            log.error("重建缓存失败, key: {}", keys, e);
+        } finally {
+            long latency = System.currentTimeMillis() - begin;
+            totalLatencyMillis.add(latency);
+            maxLatencyMillis.accumulate(latency);
+            pendingKeys.removeAll(keys);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long finished = completed.sum() + failures.sum();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("activeThreads", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("callerRuns", callerRunCount.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failures", failures.sum());
+        stats.put("avgLatencyMillis", finished == 0 ? 0 : totalLatencyMillis.sum() / finished);
+        stats.put("maxLatencyMillis", maxLatencyMillis.get());
+        return stats;
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 启动时预热缓存：按id分页（id > 上一批最大id）读取店铺，每一批用一个pipeline写入Redis（逻辑过期或Hash存储），并按速率限流。
+ * 每一批是一次独立的短查询，不会长时间占用连接和事务。
+ * 加载到配置的比例之前{@link CacheWarmupInterceptor}对业务请求返回503，剩余部分在后台继续加载。
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    private final ShopMapper shopMapper;
+    private final IShopTypeService shopTypeService;
+    private final CacheClient cacheClient;
+
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.warmup.chunk-size:500}")
+    private int chunkSize;
+    /**
+     * 每秒最多读取的店铺数量，0表示不限流
+     */
+    @Value("${hmdp.cache.warmup.rows-per-second:5000}")
+    private int rowsPerSecond;
+    /**
+     * 加载到这个比例后才进入就绪状态
+     */
+    @Value("${hmdp.cache.warmup.ready-fraction:0.8}")
+    private double readyFraction;
+    /**
+     * 等待就绪的最长毫秒数，超时后不再拒绝请求
+     */
+    @Value("${hmdp.cache.warmup.ready-timeout:60000}")
+    private long readyTimeoutMillis;
+    @Value("${hmdp.cache.shop.storage:string}")
+    private String shopStorage;
+
+    private volatile boolean ready;
+    private volatile String state = "idle";
+    private volatile long total;
+    private volatile long loaded;
+    private volatile long startTime;
+    private volatile long finishTime;
+
+    public CacheWarmer(ShopMapper shopMapper, IShopTypeService shopTypeService, CacheClient cacheClient) {
+        this.shopMapper = shopMapper;
+        this.shopTypeService = shopTypeService;
+        this.cacheClient = cacheClient;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            ready = true;
+            return;
+        }
+        startTime = System.currentTimeMillis();
+        Thread thread = new Thread(this::warmUp, "cache-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp() {
+        state = "running";
+        try {
+            shopTypeService.queryShopType();
+            total = shopMapper.selectCount(null);
+            checkReady();
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .gt("id", lastId).orderByAsc("id").last("LIMIT " + chunkSize));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                Map<Long, Shop> chunk = new LinkedHashMap<>(shops.size() * 2);
+                for (Shop shop : shops) {
+                    chunk.put(shop.getId(), shop);
+                }
+                writeChunk(chunk);
+                lastId = shops.get(shops.size() - 1).getId();
+                if (shops.size() < chunkSize) {
+                    break;
+                }
+            }
+            state = "done";
+            log.info("缓存预热完成, 店铺: {}, 耗时: {}ms", loaded, System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            state = "failed";
+            log.error("缓存预热失败, 已加载: {}/{}", loaded, total, e);
+        } finally {
+            finishTime = System.currentTimeMillis();
+            ready = true;
+        }
+    }
+
+    private void writeChunk(Map<Long, Shop> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        if ("hash".equalsIgnoreCase(shopStorage)) {
+            cacheClient.setManyHash(CACHE_SHOP_KEY, chunk, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        } else {
+            cacheClient.setManyWithLogicalExpire(CACHE_SHOP_KEY, chunk, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        loaded += chunk.size();
+        // 限流：按这一批的数量计算至少需要的耗时，不够就等待
+        if (rowsPerSecond > 0) {
+            long minMillis = chunk.size() * 1000L / rowsPerSecond;
+            long sleep = minMillis - (System.currentTimeMillis() - begin);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        checkReady();
+    }
+
+    private void checkReady() {
+        if (loaded >= total * readyFraction) {
+            ready = true;
+        }
+    }
+
+    /**
+     * 是否可以接收业务请求：加载到就绪比例、预热结束或者等待超时
+     */
+    public boolean isReady() {
+        if (ready || !enabled) {
+            return true;
+        }
+        long start = startTime;
+        if (start > 0 && System.currentTimeMillis() - start >= readyTimeoutMillis) {
+            ready = true;
+            log.warn("缓存预热未在{}毫秒内达到就绪比例, 开始接收请求, 已加载: {}/{}", readyTimeoutMillis, loaded, total);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 预热进度
+     */
+    public Map<String, Object> getProgress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("total", total);
+        progress.put("loaded", loaded);
+        progress.put("ready", ready);
+        long end = finishTime > 0 ? finishTime : System.currentTimeMillis();
+        progress.put("elapsedMillis", startTime > 0 ? end - startTime : 0);
+        return progress;
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 缓存预热到就绪比例之前拒绝店铺相关的请求。Tomcat在ApplicationRunner执行前就开始接收请求，
+ * 没有这个拦截器时冷缓存的请求会直接打到数据库
+ */
+public class CacheWarmupInterceptor implements HandlerInterceptor {
+
+    private final CacheWarmer cacheWarmer;
+
+    public CacheWarmupInterceptor(CacheWarmer cacheWarmer) {
+        this.cacheWarmer = cacheWarmer;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (cacheWarmer.isReady()) {
+            return true;
+        }
+        // 503让负载均衡把请求转到其他节点，稍后重试
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-Min Sketch，线程安全，用固定内存估算每个key的出现次数，只会高估不会低估。
+ * 每行用不同种子的murmur3哈希key的UTF-8字节，在一行冲突的两个key在其他行基本不会再冲突
+ */
+public class CountMinSketch {
+    private final AtomicIntegerArray counters;
+    private final int depth;
+    private final int mask;
+
+    /**
+     * @param width 每行的计数器个数，向上取整为2的幂
+     * @param depth 行数，即哈希函数个数
+     */
+    public CountMinSketch(int width, int depth) {
+        int w = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        this.counters = new AtomicIntegerArray(w * depth);
+        this.depth = depth;
+        this.mask = w - 1;
+    }
+
+    /**
+     * key在每一行的计数器下标。宽度和行数相同的sketch下标相同，同时查询多个sketch时只需计算一次
+     */
+    public int[] indexes(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int[] indexes = new int[depth];
+        for (int row = 0; row < depth; row++) {
+            indexes[row] = row * (mask + 1) + (MurmurHash.hash32(bytes, bytes.length, seed(row)) & mask);
+        }
+        return indexes;
+    }
+
+    public void add(int[] indexes) {
+        for (int index : indexes) {
+            counters.incrementAndGet(index);
+        }
+    }
+
+    public int estimate(int[] indexes) {
+        int min = Integer.MAX_VALUE;
+        for (int index : indexes) {
+            min = Math.min(min, counters.get(index));
+        }
+        return min;
+    }
+
+    public void add(String key) {
+        add(indexes(key));
+    }
+
+    public int estimate(String key) {
+        return estimate(indexes(key));
+    }
+
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    private static int seed(int row) {
+        return 0x9747b28c + row * 0x61c88647;
+    }
+}
@@ -0,0 +1,241 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_HOT_KEY_PREFIX;
+
+/**
+ * 热点key探测：每个节点用滑动窗口的Count-Min Sketch统计key的访问次数，窗口由多个时间片组成，
+ * 每个时间片一个sketch。时间片按墙上时间划分，记录访问时发现进入新的时间片就清空过期的sketch，
+ * 窗口的滑动不依赖定时任务按时执行。窗口内访问次数超过阈值的key判定为热点。
+ * 开启集群汇总后，各节点把访问较多的候选key按时间片累加到Redis的ZSET，
+ * 流量分散到多个节点、单个节点达不到阈值的key也能被发现。
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.cache.hotkey.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.hotkey.bucket-millis:2000}")
+    private long bucketMillis;
+    @Value("${hmdp.cache.hotkey.buckets:5}")
+    private int bucketCount;
+    @Value("${hmdp.cache.hotkey.width:4096}")
+    private int width;
+    @Value("${hmdp.cache.hotkey.depth:4}")
+    private int depth;
+    /**
+     * 单个节点在一个窗口内的访问次数达到该值时判定为热点
+     */
+    @Value("${hmdp.cache.hotkey.threshold:500}")
+    private int threshold;
+
+    @Value("${hmdp.cache.hotkey.cluster.enabled:false}")
+    private boolean clusterEnabled;
+    /**
+     * 单个节点在一个窗口内的访问次数达到该值时上报到Redis
+     */
+    @Value("${hmdp.cache.hotkey.cluster.report-threshold:50}")
+    private int reportThreshold;
+    /**
+     * 所有节点在一个窗口内的访问次数之和达到该值时判定为热点
+     */
+    @Value("${hmdp.cache.hotkey.cluster.threshold:2000}")
+    private int clusterThreshold;
+    @Value("${hmdp.cache.hotkey.cluster.top:100}")
+    private int clusterTop;
+
+    private static final int MAX_CANDIDATES = 10000;
+
+    private CountMinSketch[] sketches;
+    /**
+     * 当前时间片的编号，即 墙上时间 / bucketMillis
+     */
+    private volatile long epoch;
+    /**
+     * 最近一次上报到Redis的时间片编号，定时任务积压后连续执行时不重复上报
+     */
+    private long reportedEpoch;
+    /**
+     * 本节点判定的热点key和窗口内的访问次数
+     */
+    private Cache<String, Long> localHotKeys;
+    /**
+     * 集群汇总判定的热点key和窗口内的访问次数
+     */
+    private Cache<String, Long> clusterHotKeys;
+    /**
+     * 当前时间片内需要上报的候选key
+     */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    public HotKeyDetector(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        sketches = new CountMinSketch[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            sketches[i] = new CountMinSketch(width, depth);
+        }
+        epoch = System.currentTimeMillis() / bucketMillis;
+        reportedEpoch = epoch - 1;
+        long windowMillis = bucketMillis * bucketCount;
+        localHotKeys = Caffeine.newBuilder().expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS).build();
+        clusterHotKeys = Caffeine.newBuilder().expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * 记录一次访问
+     * @return key当前是否为热点
+     */
+    public boolean record(String key) {
+        return record(key, System.currentTimeMillis());
+    }
+
+    boolean record(String key, long now) {
+        if (!enabled) {
+            return false;
+        }
+        int[] indexes = sketches[0].indexes(key);
+        currentSketch(now).add(indexes);
+        int count = 0;
+        for (CountMinSketch sketch : sketches) {
+            count += sketch.estimate(indexes);
+        }
+        if (count >= threshold) {
+            localHotKeys.put(key, (long) count);
+            return true;
+        }
+        if (clusterEnabled && count >= reportThreshold && candidates.size() < MAX_CANDIDATES) {
+            candidates.add(key);
+        }
+        return clusterHotKeys.getIfPresent(key) != null;
+    }
+
+    /**
+     * 返回now所在时间片的sketch，进入新的时间片时先清空这期间过期的sketch
+     */
+    private CountMinSketch currentSketch(long now) {
+        long e = now / bucketMillis;
+        if (e > epoch) {
+            rotate(e);
+        }
+        return sketches[(int) (epoch % bucketCount)];
+    }
+
+    private synchronized void rotate(long e) {
+        long last = epoch;
+        if (e <= last) {
+            return;
+        }
+        // 中间没有访问的时间片也要清空，最多清空整个窗口
+        long steps = Math.min(e - last, bucketCount);
+        for (long i = e - steps + 1; i <= e; i++) {
+            sketches[(int) (i % bucketCount)].clear();
+        }
+        epoch = e;
+    }
+
+    /**
+     * 把刚结束的时间片上报到Redis。本地窗口的滑动不依赖这里，定时任务延迟只会推迟集群汇总
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hotkey.bucket-millis:2000}")
+    public void tick() {
+        if (!enabled || !clusterEnabled) {
+            return;
+        }
+        currentSketch(System.currentTimeMillis());
+        long closed = epoch - 1;
+        if (closed <= reportedEpoch) {
+            return;
+        }
+        reportedEpoch = closed;
+        try {
+            aggregate(sketches[(int) (closed % bucketCount)], closed);
+        } catch (Exception e) {
+            log.warn("汇总热点key失败", e);
+        }
+    }
+
+    private void aggregate(CountMinSketch closed, long epoch) {
+        // 各节点的时间片按墙上时间划分，上报到对应时间片的ZSET，读取时取最近一个窗口的ZSET求和
+        String zsetKey = CACHE_HOT_KEY_PREFIX + epoch;
+        List<String> reported = new ArrayList<>(candidates);
+        candidates.clear();
+        if (!reported.isEmpty()) {
+            byte[] rawKey = zsetKey.getBytes(StandardCharsets.UTF_8);
+            long expireSeconds = Math.max(1, bucketMillis * bucketCount * 2 / 1000);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : reported) {
+                    int count = closed.estimate(key);
+                    if (count > 0) {
+                        connection.zIncrBy(rawKey, count, key.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                connection.expire(rawKey, expireSeconds);
+                return null;
+            });
+        }
+        Map<String, Long> totals = new HashMap<>();
+        for (long e = epoch - bucketCount + 1; e <= epoch; e++) {
+            Set<ZSetOperations.TypedTuple<String>> top = stringRedisTemplate.opsForZSet()
+                    .reverseRangeWithScores(CACHE_HOT_KEY_PREFIX + e, 0, clusterTop - 1);
+            if (top == null) {
+                continue;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : top) {
+                if (tuple.getValue() != null && tuple.getScore() != null) {
+                    totals.merge(tuple.getValue(), tuple.getScore().longValue(), Long::sum);
+                }
+            }
+        }
+        totals.forEach((key, count) -> {
+            if (count >= clusterThreshold) {
+                clusterHotKeys.put(key, count);
+            }
+        });
+    }
+
+    /**
+     * 当前的热点key，按访问次数从大到小排列
+     */
+    public List<Map<String, Object>> getHotKeys() {
+        List<Map<String, Object>> hotKeys = new ArrayList<>();
+        localHotKeys.asMap().forEach((key, count) -> hotKeys.add(hotKey(key, count, "local")));
+        clusterHotKeys.asMap().forEach((key, count) -> hotKeys.add(hotKey(key, count, "cluster")));
+        hotKeys.sort((a, b) -> Long.compare((Long) b.get("count"), (Long) a.get("count")));
+        return hotKeys;
+    }
+
+    private static Map<String, Object> hotKey(String key, Long count, String source) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("key", key);
+        item.put("count", count);
+        item.put("source", source);
+        return item;
+    }
+}
@@ -0,0 +1,8 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器，通过 hmdp.id.worker 选择实现：redis 或 snowflake
+ */
+public interface IIdWorker {
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,231 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_ADDED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+
+/**
+ * 按缓存key前缀维护数据库中已存在id的布隆过滤器，防止缓存穿透。
+ * 过滤器保存在本地内存，定期从数据库重建；新增数据时通过Redis发布订阅通知所有节点。
+ * 发布订阅不保证送达，新增的id同时记到Redis的ZSET中，本地过滤器判断不存在时再查一次这个ZSET，
+ * 漏掉消息的节点也不会拒绝真实的id。ZSET只保留两个重建周期内新增的id，更早的id已经在每个节点重建后的过滤器里。
+ * 在ZSET中确认过不存在的id在本地记住miss-ttl毫秒，重复请求同一个不存在的id时不再访问Redis。
+ * 过滤器还没有建好时放行所有请求。
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+    /**
+     * 当前节点的标识，收到自己广播的消息时跳过
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.cache.bloom.rebuild-interval:3600000}")
+    private long rebuildIntervalMillis;
+    @Value("${hmdp.cache.bloom.miss-max-size:100000}")
+    private long missMaxSize;
+    /**
+     * 确认不存在的结果在本地保留的毫秒数，也是漏掉广播时新增id最多被拒绝的时间
+     */
+    @Value("${hmdp.cache.bloom.miss-ttl:5000}")
+    private long missTtlMillis;
+
+    public IdBloomFilter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 消息格式：节点id\nkey前缀\nid
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            List<String> lines = StrUtil.split(new String(message.getBody(), StandardCharsets.UTF_8), '\n');
+            if (lines.size() < 3 || nodeId.equals(lines.get(0))) {
+                return;
+            }
+            Holder holder = holders.get(lines.get(1));
+            if (holder != null) {
+                holder.put(Long.parseLong(lines.get(2)));
+            }
+        }, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+    }
+
+    /**
+     * 注册一个key前缀对应的id来源
+     * @param keyPrefix 缓存key前缀
+     * @param idLoader 查询数据库中全部id
+     */
+    public void register(String keyPrefix, Supplier<List<Long>> idLoader) {
+        holders.put(keyPrefix, new Holder(keyPrefix, idLoader));
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时id一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        if (!enabled || !(id instanceof Number)) {
+            return true;
+        }
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null) {
+            return true;
+        }
+        BloomFilter filter = holder.current;
+        long value = ((Number) id).longValue();
+        if (filter == null || filter.mightContain(value)) {
+            return true;
+        }
+        // 本地判断不存在，可能是漏掉了新增的广播，再确认一次最近新增的id
+        return recentlyAdded(holder, value);
+    }
+
+    private boolean recentlyAdded(Holder holder, long id) {
+        Cache<Long, Boolean> misses = holder.misses();
+        if (misses.getIfPresent(id) != null) {
+            return false;
+        }
+        try {
+            Double score = stringRedisTemplate.opsForZSet().score(CACHE_BLOOM_ADDED_KEY + holder.keyPrefix, String.valueOf(id));
+            if (score == null) {
+                misses.put(id, Boolean.TRUE);
+                return false;
+            }
+            holder.put(id);
+            return true;
+        } catch (Exception e) {
+            // Redis不可用时放行，由缓存和数据库判断
+            log.warn("查询新增id失败, keyPrefix: {}, id: {}", holder.keyPrefix, id, e);
+            return true;
+        }
+    }
+
+    /**
+     * 新增数据后调用，同时通知其他节点
+     */
+    public void add(String keyPrefix, Long id) {
+        Holder holder = holders.get(keyPrefix);
+        if (holder == null || id == null) {
+            return;
+        }
+        holder.put(id);
+        stringRedisTemplate.opsForZSet().add(CACHE_BLOOM_ADDED_KEY + keyPrefix, id.toString(), System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, nodeId + "\n" + keyPrefix + "\n" + id);
+    }
+
+    /**
+     * 定期重建，清掉已经删除的id，并按数据量调整过滤器大小
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.rebuild-interval:3600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        for (Holder holder : holders.values()) {
+            try {
+                holder.rebuild();
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败, keyPrefix: {}", holder.keyPrefix, e);
+            }
+        }
+    }
+
+    private class Holder {
+        private final String keyPrefix;
+        private final Supplier<List<Long>> idLoader;
+        private volatile BloomFilter current;
+        /**
+         * 重建期间新增的id，重建完成后补进新的过滤器
+         */
+        private volatile Set<Long> addedDuringRebuild;
+        /**
+         * 在Redis中确认过不是最近新增的id
+         */
+        private volatile Cache<Long, Boolean> misses;
+
+        Holder(String keyPrefix, Supplier<List<Long>> idLoader) {
+            this.keyPrefix = keyPrefix;
+            this.idLoader = idLoader;
+        }
+
+        Cache<Long, Boolean> misses() {
+            Cache<Long, Boolean> cache = misses;
+            if (cache == null) {
+                synchronized (this) {
+                    cache = misses;
+                    if (cache == null) {
+                        cache = Caffeine.newBuilder()
+                                .maximumSize(missMaxSize)
+                                .expireAfterWrite(missTtlMillis, TimeUnit.MILLISECONDS)
+                                .build();
+                        misses = cache;
+                    }
+                }
+            }
+            return cache;
+        }
+
+        void put(long id) {
+            Cache<Long, Boolean> cache = misses;
+            if (cache != null) {
+                cache.invalidate(id);
+            }
+            Set<Long> added = addedDuringRebuild;
+            if (added != null) {
+                added.add(id);
+            }
+            BloomFilter filter = current;
+            if (filter != null) {
+                filter.put(id);
+            }
+        }
+
+        synchronized void rebuild() {
+            // 每个节点每个周期都会重建一次，两个周期以前新增的id已经在所有节点的过滤器里了
+            stringRedisTemplate.opsForZSet().removeRangeByScore(CACHE_BLOOM_ADDED_KEY + keyPrefix,
+                    Double.NEGATIVE_INFINITY, System.currentTimeMillis() - 2 * rebuildIntervalMillis);
+            Set<Long> added = ConcurrentHashMap.newKeySet();
+            addedDuringRebuild = added;
+            List<Long> ids = idLoader.get();
+            BloomFilter filter = new BloomFilter(Math.max(expectedInsertions, ids.size() * 2L), fpp);
+            for (Long id : ids) {
+                filter.put(id);
+            }
+            added.forEach(filter::put);
+            current = filter;
+            // 切换前新增的id可能只写进了旧的过滤器，再补一次
+            added.forEach(filter::put);
+            addedDuringRebuild = null;
+            log.info("重建布隆过滤器完成, keyPrefix: {}, size: {}", keyPrefix, ids.size());
+        }
+    }
+}
@@ -11,10 +11,35 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_ADDED_KEY = "cache:bloom:added:";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
+    public static final String CACHE_OUTBOX_LOCK_KEY = "lock:cache:outbox";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopType:version";
+    public static final String CACHE_SHOP_TYPE_CHANNEL = "cache:shopType";
+    public static final String CACHE_HOT_KEY_PREFIX = "cache:hotkeys:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    // 早期分片库存的分片数key，只在迁移旧数据时使用
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_DEAD_LETTER_KEY = "stream.orders.dlq";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_TIME_KEY = "id:worker:time:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
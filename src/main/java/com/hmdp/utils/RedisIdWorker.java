@@ -1,14 +1,28 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(prefix = "hmdp.id", name = "worker", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IIdWorker {
     /**
      * 开始时间戳
      */
@@ -17,14 +31,39 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段模式：每次用INCRBY预留一段序列号，在本地分配
+     */
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+    @Value("${hmdp.id.segment.size:1000}")
+    private int segmentSize;
+    /**
+     * 当前号段用掉这个比例后，后台预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @Override
     public long nextId(String keyPrefix) {
+        if (segmentEnabled) {
+            return nextSegmentId(keyPrefix);
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -32,11 +71,115 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    private long nextSegmentId(String keyPrefix) {
+        // 1.生成时间戳，和LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致，但不创建对象
+        long millis = System.currentTimeMillis();
+        long nowSecond = (millis + TimeZone.getDefault().getOffset(millis)) / 1000;
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+
+        // 2.从当天的号段中取序列号，跨天时换成新一天的号段
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        SegmentBuffer buffer = buffers.get(keyPrefix);
+        if (buffer == null || buffer.day != day) {
+            buffer = buffers.compute(keyPrefix, (k, old) -> old != null && old.day == day ? old : new SegmentBuffer(k, day));
+        }
+        long count = buffer.nextSequence();
+
+        // 3.拼接并返回
+        return timestamp << COUNT_BITS | count;
+    }
+
+    /**
+     * 一个号段 [start, max]
+     */
+    private static class Segment {
+        private final long start;
+        private final long max;
+        private final AtomicLong cursor;
+
+        Segment(long start, long max) {
+            this.start = start;
+            this.max = max;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 双号段缓冲：当前号段用到80%时后台预取下一个号段，用完时直接切换
+     */
+    private class SegmentBuffer {
+        private final String key;
+        private final long day;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean(false);
+
+        SegmentBuffer(String keyPrefix, long day) {
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            this.key = "icr:" + keyPrefix + ":" + date;
+            this.day = day;
+        }
+
+        long nextSequence() {
+            while (true) {
+                Segment segment = current;
+                if (segment != null) {
+                    long sequence = segment.cursor.getAndIncrement();
+                    if (sequence <= segment.max) {
+                        if (sequence - segment.start >= segmentSize * PREFETCH_RATIO) {
+                            prefetch();
+                        }
+                        return sequence;
+                    }
+                }
+                // 当前号段用完，切换到预取好的号段，没有预取到就同步申请
+                synchronized (this) {
+                    if (current == segment) {
+                        Segment prefetched = next;
+                        next = null;
+                        current = prefetched != null ? prefetched : allocate();
+                    }
+                }
+            }
+        }
+
+        private void prefetch() {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try {
+                    Segment segment = allocate();
+                    synchronized (this) {
+                        next = segment;
+                    }
+                } catch (Exception e) {
+                    log.error("预取号段失败, key: {}", key, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        private Segment allocate() {
+            Long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+            if (end == null) {
+                throw new IllegalStateException("申请号段失败: " + key);
+            }
+            return new Segment(end - segmentSize + 1, end);
+        }
+    }
 }
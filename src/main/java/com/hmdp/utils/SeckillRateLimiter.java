@@ -0,0 +1,92 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillRateLimitProperties;
+import com.hmdp.config.SeckillRateLimitProperties.Bucket;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀限流：Redis中的分布式令牌桶，按优惠券和用户两个维度限流。
+ * 可选的本地令牌桶按本节点的份额先过滤一遍，超出的请求不用访问Redis。
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillRateLimitProperties properties;
+    private final Map<Long, LocalBucket> localBuckets = new ConcurrentHashMap<>();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate, SeckillRateLimitProperties properties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+    }
+
+    /**
+     * @return true 放行，false 被限流
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        Bucket voucherBucket = properties.getVoucherBucket(voucherId);
+        // 1.本地预过滤
+        if (properties.getLocalShare() > 0) {
+            LocalBucket local = localBuckets.computeIfAbsent(voucherId, id -> new LocalBucket(
+                    voucherBucket.getRate() * properties.getLocalShare(),
+                    Math.max(1, voucherBucket.getCapacity() * properties.getLocalShare())));
+            if (!local.tryAcquire()) {
+                return false;
+            }
+        }
+        // 2.Redis令牌桶，key中的{voucherId}是hash tag，保证两个key在集群中落在同一个slot
+        Bucket userBucket = properties.getUser();
+        String voucherKey = SECKILL_LIMIT_KEY + "{" + voucherId + "}";
+        Long result = stringRedisTemplate.execute(
+                RATE_LIMIT_SCRIPT,
+                Arrays.asList(voucherKey, voucherKey + ":" + userId),
+                String.valueOf(voucherBucket.getRate()), String.valueOf(voucherBucket.getCapacity()),
+                String.valueOf(userBucket.getRate()), String.valueOf(userBucket.getCapacity())
+        );
+        return result != null && result == 1;
+    }
+
+    private static class LocalBucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        LocalBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1_000_000_000D);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
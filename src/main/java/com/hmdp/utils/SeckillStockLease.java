@@ -0,0 +1,192 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点本地库存租约：每次从Redis中心库存批量租借一段库存，
+ * 请求直接在本地CAS扣减，只有租约用完时才访问Redis。
+ * 租约空闲超时、秒杀结束或者应用关闭时，把没用完的库存还给Redis。
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    public static final int ACQUIRED = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int NOT_LOADED = 3;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 中心库存被租完以后，间隔多久再去Redis看一次有没有其他节点归还的库存
+     */
+    private static final long SOLD_OUT_RECHECK_MILLIS = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.lease.block-size:50}")
+    private int blockSize;
+    @Value("${hmdp.seckill.lease.ttl:30000}")
+    private long leaseTtlMillis;
+
+    public SeckillStockLease(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 从本地租约中扣减一个库存
+     * @param voucherId 优惠券id
+     * @param endTime 秒杀结束时间，结束后归还剩余库存
+     * @return ACQUIRED、SOLD_OUT 或 NOT_LOADED
+     */
+    public int tryAcquire(Long voucherId, LocalDateTime endTime) {
+        while (true) {
+            Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease(id, endTime));
+            // 1.本地CAS扣减
+            if (lease.tryDecrement()) {
+                return ACQUIRED;
+            }
+            // 2.租约用完，从Redis续租
+            int result = lease.refill();
+            if (result != ACQUIRED) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * 扣了本地库存但没有下单成功（例如重复下单），把库存还给本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null || !lease.giveBack()) {
+            // 租约已经归还过了，直接还给Redis
+            giveBackToRedis(voucherId, 1);
+        }
+    }
+
+    /**
+     * 定期归还空闲超时或者秒杀已经结束的租约
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void returnExpiredLeases() {
+        long now = System.currentTimeMillis();
+        LocalDateTime nowTime = LocalDateTime.now();
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            Lease lease = iterator.next();
+            if (now - lease.lastAccess > leaseTtlMillis || lease.endTime.isBefore(nowTime)) {
+                iterator.remove();
+                lease.close();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void returnAllLeases() {
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            Lease lease = iterator.next();
+            iterator.remove();
+            lease.close();
+        }
+    }
+
+    private void giveBackToRedis(Long voucherId, int count) {
+        stringRedisTemplate.opsForValue().increment(SeckillStockStore.stockKey(voucherId), count);
+    }
+
+    private class Lease {
+        private final Long voucherId;
+        private final LocalDateTime endTime;
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile long soldOutTime;
+        private volatile boolean closed;
+
+        Lease(Long voucherId, LocalDateTime endTime) {
+            this.voucherId = voucherId;
+            this.endTime = endTime;
+        }
+
+        boolean tryDecrement() {
+            lastAccess = System.currentTimeMillis();
+            int current;
+            do {
+                current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(current, current - 1));
+            return true;
+        }
+
+        synchronized boolean giveBack() {
+            if (closed) {
+                return false;
+            }
+            remaining.incrementAndGet();
+            return true;
+        }
+
+        synchronized int refill() {
+            if (closed) {
+                // 租约已经被归还，调用方重新创建租约
+                return ACQUIRED;
+            }
+            if (remaining.get() > 0) {
+                // 其他线程已经续租成功
+                return ACQUIRED;
+            }
+            if (System.currentTimeMillis() - soldOutTime < SOLD_OUT_RECHECK_MILLIS) {
+                return SOLD_OUT;
+            }
+            Long leased = stringRedisTemplate.execute(LEASE_SCRIPT,
+                    Collections.singletonList(SeckillStockStore.stockKey(voucherId)), String.valueOf(blockSize));
+            if (leased == null || leased < 0) {
+                return NOT_LOADED;
+            }
+            if (leased == 0) {
+                soldOutTime = System.currentTimeMillis();
+                return SOLD_OUT;
+            }
+            remaining.addAndGet(leased.intValue());
+            return ACQUIRED;
+        }
+
+        synchronized void close() {
+            closed = true;
+            int unused = remaining.getAndSet(0);
+            if (unused > 0) {
+                giveBackToRedis(voucherId, unused);
+                log.debug("归还本地库存租约, voucherId: {}, count: {}", voucherId, unused);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存：seckill:stock:{voucherId}，{voucherId}是hash tag，和下单用户集合 seckill:order:{voucherId} 在同一个slot。
+ * 早期版本把库存拆成多个分片key，但分片和下单用户集合要在一个脚本里原子地判断，只能放在同一个slot，
+ * 也就是同一个Redis节点上，并不能提高单张券的吞吐，现在合并回一个key；单张券的热点靠本地库存租约(hmdp.seckill.lease)分摊
+ */
+@Component
+public class SeckillStockStore {
+
+    private static final DefaultRedisScript<Long> MIGRATE_SCRIPT;
+    static {
+        MIGRATE_SCRIPT = new DefaultRedisScript<>();
+        MIGRATE_SCRIPT.setLocation(new ClassPathResource("seckill_migrate.lua"));
+        MIGRATE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 下单用户集合中表示已经从数据库加载过的成员，用户id从1开始，不会和真实用户冲突。
+     * Redis中没有空集合，没有订单的券也要留下这个成员，预热时才不会每次都去数据库查下单用户
+     */
+    public static final String BUYERS_LOADED = "0";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SeckillStockStore(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public void initStock(Long voucherId, int stock) {
+        stringRedisTemplate.opsForValue().set(stockKey(voucherId), String.valueOf(stock));
+    }
+
+    /**
+     * 只在库存不存在时写入，用于预热，不会覆盖正在扣减的库存
+     * @return 是否写入成功
+     */
+    public boolean initStockIfAbsent(Long voucherId, int stock) {
+        migrateLegacyKeys(voucherId);
+        // SETNX：多个节点同时预热也只有一个成功
+        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId), String.valueOf(stock));
+        return Boolean.TRUE.equals(success);
+    }
+
+    /**
+     * 早期的库存key和下单用户集合没有hash tag，之后又有过分片库存，一次脚本调用全部迁移到现在的key，
+     * 下单用户集合和库存一起迁移，迁移过程中不会出现有库存但下单用户集合不全的时刻
+     */
+    private void migrateLegacyKeys(Long voucherId) {
+        String shardsKey = SECKILL_SHARDS_KEY + hashTag(voucherId);
+        List<String> keys = new ArrayList<>(Arrays.asList(
+                SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                stockKey(voucherId), orderKey(voucherId), shardsKey));
+        String shards = stringRedisTemplate.opsForValue().get(shardsKey);
+        int count = shards == null ? 1 : Integer.parseInt(shards);
+        // 只有1个分片时库存key就是现在的key，不用合并
+        for (int i = 0; count > 1 && i < count; i++) {
+            keys.add(stockKey(voucherId) + ":" + i);
+        }
+        stringRedisTemplate.execute(MIGRATE_SCRIPT, keys);
+    }
+
+    public static String stockKey(Long voucherId) {
+        return SECKILL_STOCK_KEY + hashTag(voucherId);
+    }
+
+    /**
+     * 下单用户集合 seckill:order:{voucherId}，和库存在同一个slot
+     */
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + hashTag(voucherId);
+    }
+
+    private static String hashTag(Long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    /**
+     * 一次MGET查询一批券的剩余库存，库存key不存在的券不在结果中
+     */
+    public Map<Long, Long> stocks(Collection<Long> voucherIds) {
+        List<Long> ids = new ArrayList<>(voucherIds);
+        List<String> keys = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            keys.add(stockKey(voucherId));
+        }
+        Map<Long, Long> stocks = new HashMap<>();
+        if (keys.isEmpty()) {
+            return stocks;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return stocks;
+        }
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != null) {
+                stocks.put(ids.get(i), Long.parseLong(values.get(i)));
+            }
+        }
+        return stocks;
+    }
+
+    /**
+     * 剩余库存，key不存在时返回null
+     */
+    public Long stock(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(stockKey(voucherId));
+        return value == null ? null : Long.parseLong(value);
+    }
+}
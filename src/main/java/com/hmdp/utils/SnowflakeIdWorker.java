@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TIME_KEY;
+
+/**
+ * 雪花算法id生成器：1位符号位 + 41位毫秒时间戳 + 10位worker id + 12位序列号，生成id不访问Redis。
+ * worker id从Redis租借并定期续约，自动扩容出来的节点也不会拿到相同的worker id。
+ * 续约时把这个worker id可能用到的最大时间戳记到Redis，其他节点接手这个worker id时，
+ * 即使它的时钟比上一个节点慢，也会从这个时间戳之后开始生成id。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "worker", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+    /**
+     * 开始时间戳，2022-01-01 00:00:00 UTC，毫秒
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew_worker.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 当前节点的标识，用来判断worker id的租约是不是自己的
+     */
+    private final String nodeToken = UUID.randomUUID().toString(true);
+
+    @Value("${hmdp.id.snowflake.lease-ttl:30000}")
+    private long leaseTtlMillis;
+    /**
+     * 时钟回拨不超过该毫秒数时等待时钟追上，超过时继续沿用上次的时间戳、借用序列号
+     */
+    @Value("${hmdp.id.snowflake.max-backward-wait:10}")
+    private long maxBackwardWaitMillis;
+    @Value("${hmdp.id.snowflake.heartbeat:10000}")
+    private long heartbeatMillis;
+    /**
+     * 续约用单独的线程，不和其他@Scheduled任务抢线程，避免其他任务卡住导致租约过期
+     */
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private volatile int workerId = -1;
+    /**
+     * 租约的有效期，续约失败超过这个时间就不能再生成id，因为worker id可能已经被别的节点拿走
+     */
+    private volatile long leaseValidUntil;
+    /**
+     * 上一次生成id时的状态：时间戳 << 12 | 序列号
+     */
+    private final AtomicLong lastState = new AtomicLong();
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        acquireWorkerId();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        int id = workerId;
+        if (id < 0) {
+            return;
+        }
+        String key = ID_WORKER_KEY + id;
+        if (nodeToken.equals(stringRedisTemplate.opsForValue().get(key))) {
+            // 正常退出时只记录实际用到的时间戳，下一个节点不用等到租约的有效期
+            stringRedisTemplate.opsForValue().set(ID_WORKER_TIME_KEY + id, String.valueOf(lastIssuedMillis()));
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        int id = workerId;
+        if (id < 0 || System.currentTimeMillis() > leaseValidUntil) {
+            throw new IllegalStateException("worker id租约已失效，暂时无法生成id");
+        }
+        while (true) {
+            long last = lastState.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - BEGIN_TIMESTAMP;
+            // 1.时钟回拨较小时等待时钟追上
+            if (now < lastTimestamp && lastTimestamp - now <= maxBackwardWaitMillis) {
+                sleep(lastTimestamp - now);
+                continue;
+            }
+            // 2.时钟回拨较大时沿用上次的时间戳，同一毫秒内序列号用完就借用下一毫秒
+            long timestamp = Math.max(now, lastTimestamp);
+            long sequence = 0;
+            if (timestamp == lastTimestamp) {
+                sequence = (last & MAX_SEQUENCE) + 1;
+                if (sequence > MAX_SEQUENCE) {
+                    timestamp++;
+                    sequence = 0;
+                }
+            }
+            long next = timestamp << SEQUENCE_BITS | sequence;
+            if (lastState.compareAndSet(last, next)) {
+                return timestamp << (WORKER_BITS + SEQUENCE_BITS) | (long) id << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    /**
+     * 定期续约worker id，续约失败说明租约已经丢了，重新申请一个
+     */
+    void heartbeat() {
+        int id = workerId;
+        try {
+            if (id >= 0) {
+                // 以发出续约命令前的时间计算有效期，保证本地有效期不会晚于Redis中key的过期时间
+                long renewTime = System.currentTimeMillis();
+                // 先记下续约后可能用到的最大时间戳，再续约，记录失败时不会延长有效期
+                long maxMillis = Math.max(lastIssuedMillis(), renewTime + leaseTtlMillis);
+                stringRedisTemplate.opsForValue().set(ID_WORKER_TIME_KEY + id, String.valueOf(maxMillis));
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + id), nodeToken, String.valueOf(leaseTtlMillis));
+                if (renewed != null && renewed == 1) {
+                    leaseValidUntil = renewTime + leaseTtlMillis;
+                    return;
+                }
+                log.warn("worker id租约已丢失, workerId: {}", id);
+            }
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("worker id续约失败, workerId: {}", id, e);
+        }
+    }
+
+    private synchronized void acquireWorkerId() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            long acquireTime = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, nodeToken, leaseTtlMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                awaitPreviousOwner(id);
+                leaseValidUntil = acquireTime + leaseTtlMillis;
+                workerId = id;
+                log.info("申请到worker id: {}", id);
+                return;
+            }
+        }
+        workerId = -1;
+        throw new IllegalStateException("没有可用的worker id");
+    }
+
+    /**
+     * 上一个持有这个worker id的节点可能用到的最大时间戳之前不能生成id：
+     * 差距不超过一个租约时长时等本地时钟追上，无论是否等待，都从这个时间戳之后开始分配
+     */
+    private void awaitPreviousOwner(int id) {
+        String value = stringRedisTemplate.opsForValue().get(ID_WORKER_TIME_KEY + id);
+        if (value == null) {
+            return;
+        }
+        long previousMillis = Long.parseLong(value);
+        long behind = previousMillis - System.currentTimeMillis();
+        if (behind >= 0) {
+            log.warn("worker id {}的上一个节点用到的时间戳比本地时钟晚{}毫秒", id, behind);
+            if (behind <= leaseTtlMillis) {
+                sleep(behind + 1);
+            }
+        }
+        // 序列号设为最大值，下一个id从这个时间戳的下一毫秒开始
+        long state = (previousMillis - BEGIN_TIMESTAMP) << SEQUENCE_BITS | MAX_SEQUENCE;
+        lastState.accumulateAndGet(state, Math::max);
+    }
+
+    private long lastIssuedMillis() {
+        return (lastState.get() >>> SEQUENCE_BITS) + BEGIN_TIMESTAMP;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONUtil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制格式：
+ * <pre>
+ * 魔数(1字节) | 格式版本(1字节) | schema id(1字节) | schema版本(1字节) | 标志位(1字节)
+ *     | 过期时间戳毫秒(8字节) | 重建耗时毫秒(变长) | 数据
+ * </pre>
+ * 格式版本1没有标志位和重建耗时，过期时间戳大于0即为逻辑过期。
+ * 没有注册schema的类型，数据部分用JSON。魔数不是合法的JSON开头，所以可以和JSON格式的旧数据区分
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    public static final byte MAGIC = (byte) 0xC5;
+    private static final int FORMAT_VERSION = 2;
+    private static final int MIN_HEADER_SIZE = 12;
+    private static final int JSON_SCHEMA_ID = 0;
+    private static final int FLAG_LOGICAL_EXPIRE = 1;
+
+    private final Map<Class<?>, CacheSchema<?>> schemasByType = new HashMap<>();
+    private final Map<Integer, CacheSchema<?>> schemasById = new HashMap<>();
+
+    public BinaryCacheCodec(List<CacheSchema<?>> schemas) {
+        for (CacheSchema<?> schema : schemas) {
+            schemasByType.put(schema.type(), schema);
+            schemasById.put(schema.id(), schema);
+        }
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length >= MIN_HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(CacheEntry<?> entry) {
+        Object value = entry.getData();
+        CacheSchema<Object> schema = (CacheSchema<Object>) schemasByType.get(value.getClass());
+        BinaryWriter out = new BinaryWriter(128);
+        out.writeByte(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(schema == null ? JSON_SCHEMA_ID : schema.id());
+        out.writeByte(schema == null ? 0 : schema.version());
+        out.writeByte(entry.isLogicalExpire() ? FLAG_LOGICAL_EXPIRE : 0);
+        out.writeFixedLong(entry.getExpireAt());
+        out.writeVarLong(entry.getRebuildMillis());
+        if (schema == null) {
+            out.writeString(JSONUtil.toJsonStr(value));
+        } else {
+            schema.write(value, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> CacheEntry<R> decode(byte[] bytes, Class<R> type) {
+        int formatVersion = isBinary(bytes) ? bytes[1] & 0xFF : 0;
+        if (formatVersion != 1 && formatVersion != FORMAT_VERSION) {
+            return null;
+        }
+        BinaryReader in = new BinaryReader(bytes, 2);
+        int schemaId = in.readByte();
+        int schemaVersion = in.readByte();
+        int flags = formatVersion == 1 ? -1 : in.readByte();
+        long expireAt = in.readFixedLong();
+        boolean logicalExpire = flags == -1 ? expireAt > 0 : (flags & FLAG_LOGICAL_EXPIRE) != 0;
+        int rebuildMillis = formatVersion == 1 ? 0 : (int) in.readVarLong();
+        if (schemaId == JSON_SCHEMA_ID) {
+            return new CacheEntry<>(JSONUtil.toBean(in.readString(), type), expireAt, logicalExpire, rebuildMillis);
+        }
+        CacheSchema<?> schema = schemasById.get(schemaId);
+        if (schema == null || schema.type() != type) {
+            return null;
+        }
+        Object data = schema.read(in, schemaVersion);
+        return data == null ? null : new CacheEntry<>(type.cast(data), expireAt, logicalExpire, rebuildMillis);
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.utils.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 二进制格式的读取器，和BinaryWriter对应
+ */
+public class BinaryReader {
+    private final byte[] buf;
+    private int pos;
+
+    public BinaryReader(byte[] buf, int offset) {
+        this.buf = buf;
+        this.pos = offset;
+    }
+
+    public int readByte() {
+        return buf[pos++] & 0xFF;
+    }
+
+    public long readFixedLong() {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (buf[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    public long readVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf[pos++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("变长整数格式错误");
+    }
+
+    public Long readLong() {
+        return readByte() == 0 ? null : unzigzag(readVarLong());
+    }
+
+    public Integer readInt() {
+        long v = readVarLong();
+        return v == 0 ? null : (int) unzigzag(v - 1);
+    }
+
+    public Double readDouble() {
+        return readByte() == 0 ? null : Double.longBitsToDouble(readFixedLong());
+    }
+
+    public Boolean readBoolean() {
+        int b = readByte();
+        return b == 0 ? null : b == 2;
+    }
+
+    public String readString() {
+        long len = readVarLong();
+        if (len == 0) {
+            return null;
+        }
+        int n = (int) (len - 1);
+        String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+        pos += n;
+        return s;
+    }
+
+    public LocalDateTime readDateTime() {
+        long v = readVarLong();
+        if (v == 0) {
+            return null;
+        }
+        int nano = (int) readVarLong();
+        return LocalDateTime.ofEpochSecond(unzigzag(v - 1), nano, ZoneOffset.UTC);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmdp.utils.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 二进制格式的写入器。整数用zigzag变长编码，可空字段用0表示null
+ */
+public class BinaryWriter {
+    private byte[] buf;
+    private int pos;
+
+    public BinaryWriter(int initialSize) {
+        this.buf = new byte[initialSize];
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    public void writeFixedLong(long v) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+    }
+
+    public void writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    public void writeLong(Long v) {
+        if (v == null) {
+            writeByte(0);
+            return;
+        }
+        writeByte(1);
+        writeVarLong(zigzag(v));
+    }
+
+    public void writeInt(Integer v) {
+        // int的zigzag值加1也不会溢出long，0留给null
+        writeVarLong(v == null ? 0 : zigzag(v) + 1);
+    }
+
+    public void writeDouble(Double v) {
+        if (v == null) {
+            writeByte(0);
+            return;
+        }
+        writeByte(1);
+        writeFixedLong(Double.doubleToRawLongBits(v));
+    }
+
+    public void writeBoolean(Boolean v) {
+        writeByte(v == null ? 0 : v ? 2 : 1);
+    }
+
+    public void writeString(String v) {
+        if (v == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length + 1L);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * 按UTC换算成秒和纳秒，只是为了无损还原本地时间，不做时区转换
+     */
+    public void writeDateTime(LocalDateTime v) {
+        if (v == null) {
+            writeVarLong(0);
+            return;
+        }
+        writeVarLong(zigzag(v.toEpochSecond(ZoneOffset.UTC)) + 1);
+        writeVarLong(v.getNano());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.hmdp.utils.codec;
+
+/**
+ * 缓存值的编解码器
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码缓存值，不支持的元数据可以忽略
+     */
+    byte[] encode(CacheEntry<?> entry);
+
+    /**
+     * 解码缓存值，格式或者版本不认识时返回null，调用方按未命中处理
+     */
+    <R> CacheEntry<R> decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,25 @@
+package com.hmdp.utils.codec;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 缓存值和它的元数据
+ */
+@Getter
+@AllArgsConstructor
+public class CacheEntry<R> {
+    private final R data;
+    /**
+     * 过期时间戳，毫秒，0表示未知。逻辑过期时是逻辑过期时间，否则是写入时计算的Redis过期时间
+     */
+    private final long expireAt;
+    /**
+     * 是否逻辑过期
+     */
+    private final boolean logicalExpire;
+    /**
+     * 上一次重建这个值花费的毫秒数，用于提前刷新，0表示未知
+     */
+    private final int rebuildMillis;
+}
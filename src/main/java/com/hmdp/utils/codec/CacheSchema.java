@@ -0,0 +1,23 @@
+package com.hmdp.utils.codec;
+
+/**
+ * 一个实体类的二进制格式。新增或调整字段时提升version，read按写入时的version读取
+ */
+public interface CacheSchema<T> {
+
+    /**
+     * 写在数据头里区分实体类型，已经使用的id不能修改
+     */
+    int id();
+
+    int version();
+
+    Class<T> type();
+
+    void write(T value, BinaryWriter out);
+
+    /**
+     * @return version不认识时返回null
+     */
+    T read(BinaryReader in, int version);
+}
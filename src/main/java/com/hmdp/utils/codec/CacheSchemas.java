@@ -0,0 +1,229 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.dto.ShopVoucherCatalog;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 缓存实体的二进制格式，只写数据库中的字段，不写distance、isLike这类按请求计算的字段
+ */
+public class CacheSchemas {
+
+    public static List<CacheSchema<?>> all() {
+        // id 4 曾分配给店铺类型，店铺类型改为进程内快照后不再写入Redis，这个id不再复用
+        return Arrays.asList(new ShopSchema(), new BlogSchema(), new UserDTOSchema(), new ShopVoucherCatalogSchema());
+    }
+
+    public static class ShopSchema implements CacheSchema<Shop> {
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<Shop> type() {
+            return Shop.class;
+        }
+
+        @Override
+        public void write(Shop shop, BinaryWriter out) {
+            out.writeLong(shop.getId());
+            out.writeString(shop.getName());
+            out.writeLong(shop.getTypeId());
+            out.writeString(shop.getImages());
+            out.writeString(shop.getArea());
+            out.writeString(shop.getAddress());
+            out.writeDouble(shop.getX());
+            out.writeDouble(shop.getY());
+            out.writeLong(shop.getAvgPrice());
+            out.writeInt(shop.getSold());
+            out.writeInt(shop.getComments());
+            out.writeInt(shop.getScore());
+            out.writeString(shop.getOpenHours());
+            out.writeDateTime(shop.getCreateTime());
+            out.writeDateTime(shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(BinaryReader in, int version) {
+            if (version != 1) {
+                return null;
+            }
+            Shop shop = new Shop();
+            shop.setId(in.readLong());
+            shop.setName(in.readString());
+            shop.setTypeId(in.readLong());
+            shop.setImages(in.readString());
+            shop.setArea(in.readString());
+            shop.setAddress(in.readString());
+            shop.setX(in.readDouble());
+            shop.setY(in.readDouble());
+            shop.setAvgPrice(in.readLong());
+            shop.setSold(in.readInt());
+            shop.setComments(in.readInt());
+            shop.setScore(in.readInt());
+            shop.setOpenHours(in.readString());
+            shop.setCreateTime(in.readDateTime());
+            shop.setUpdateTime(in.readDateTime());
+            return shop;
+        }
+    }
+
+    public static class BlogSchema implements CacheSchema<Blog> {
+        @Override
+        public int id() {
+            return 2;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<Blog> type() {
+            return Blog.class;
+        }
+
+        @Override
+        public void write(Blog blog, BinaryWriter out) {
+            out.writeLong(blog.getId());
+            out.writeLong(blog.getShopId());
+            out.writeLong(blog.getUserId());
+            out.writeString(blog.getTitle());
+            out.writeString(blog.getImages());
+            out.writeString(blog.getContent());
+            out.writeInt(blog.getLiked());
+            out.writeInt(blog.getComments());
+            out.writeDateTime(blog.getCreateTime());
+            out.writeDateTime(blog.getUpdateTime());
+        }
+
+        @Override
+        public Blog read(BinaryReader in, int version) {
+            if (version != 1) {
+                return null;
+            }
+            Blog blog = new Blog();
+            blog.setId(in.readLong());
+            blog.setShopId(in.readLong());
+            blog.setUserId(in.readLong());
+            blog.setTitle(in.readString());
+            blog.setImages(in.readString());
+            blog.setContent(in.readString());
+            blog.setLiked(in.readInt());
+            blog.setComments(in.readInt());
+            blog.setCreateTime(in.readDateTime());
+            blog.setUpdateTime(in.readDateTime());
+            return blog;
+        }
+    }
+
+    public static class UserDTOSchema implements CacheSchema<UserDTO> {
+        @Override
+        public int id() {
+            return 3;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<UserDTO> type() {
+            return UserDTO.class;
+        }
+
+        @Override
+        public void write(UserDTO user, BinaryWriter out) {
+            out.writeLong(user.getId());
+            out.writeString(user.getNickName());
+            out.writeString(user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(BinaryReader in, int version) {
+            if (version != 1) {
+                return null;
+            }
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(in.readString());
+            user.setIcon(in.readString());
+            return user;
+        }
+    }
+
+    public static class ShopVoucherCatalogSchema implements CacheSchema<ShopVoucherCatalog> {
+        @Override
+        public int id() {
+            return 5;
+        }
+
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public Class<ShopVoucherCatalog> type() {
+            return ShopVoucherCatalog.class;
+        }
+
+        @Override
+        public void write(ShopVoucherCatalog catalog, BinaryWriter out) {
+            out.writeLong(catalog.getShopId());
+            out.writeVarLong(catalog.getVouchers().size());
+            for (Voucher voucher : catalog.getVouchers()) {
+                out.writeLong(voucher.getId());
+                out.writeString(voucher.getTitle());
+                out.writeString(voucher.getSubTitle());
+                out.writeString(voucher.getRules());
+                out.writeLong(voucher.getPayValue());
+                out.writeLong(voucher.getActualValue());
+                out.writeInt(voucher.getType());
+                out.writeInt(voucher.getStock());
+                out.writeDateTime(voucher.getBeginTime());
+                out.writeDateTime(voucher.getEndTime());
+            }
+        }
+
+        @Override
+        public ShopVoucherCatalog read(BinaryReader in, int version) {
+            if (version != 1) {
+                return null;
+            }
+            Long shopId = in.readLong();
+            int size = (int) in.readVarLong();
+            List<Voucher> vouchers = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Voucher voucher = new Voucher();
+                voucher.setId(in.readLong());
+                voucher.setShopId(shopId);
+                voucher.setTitle(in.readString());
+                voucher.setSubTitle(in.readString());
+                voucher.setRules(in.readString());
+                voucher.setPayValue(in.readLong());
+                voucher.setActualValue(in.readLong());
+                voucher.setType(in.readInt());
+                voucher.setStock(in.readInt());
+                voucher.setBeginTime(in.readDateTime());
+                voucher.setEndTime(in.readDateTime());
+                vouchers.add(voucher);
+            }
+            return new ShopVoucherCatalog(shopId, vouchers);
+        }
+    }
+}
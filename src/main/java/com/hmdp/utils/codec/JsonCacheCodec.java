@@ -0,0 +1,56 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.RedisData;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * JSON格式，逻辑过期时用RedisData包装，和原来写入Redis的格式一致。
+ * 重建耗时和Redis过期时间作为@开头的附加字段写入，旧版本节点转换成实体时会忽略不认识的字段；
+ * 没有附加字段的旧数据按未知处理，不会提前刷新
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    private static final String EXPIRE_AT_FIELD = "@expireAt";
+    private static final String REBUILD_MILLIS_FIELD = "@rebuildMillis";
+
+    @Override
+    public byte[] encode(CacheEntry<?> entry) {
+        JSON json;
+        if (entry.isLogicalExpire()) {
+            RedisData redisData = new RedisData();
+            redisData.setData(entry.getData());
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.getExpireAt()), ZoneId.systemDefault()));
+            json = JSONUtil.parseObj(redisData);
+        } else {
+            json = JSONUtil.parse(entry.getData());
+            if (json instanceof JSONObject && entry.getExpireAt() > 0) {
+                ((JSONObject) json).set(EXPIRE_AT_FIELD, entry.getExpireAt());
+            }
+        }
+        if (json instanceof JSONObject && entry.getRebuildMillis() > 0) {
+            ((JSONObject) json).set(REBUILD_MILLIS_FIELD, entry.getRebuildMillis());
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> CacheEntry<R> decode(byte[] bytes, Class<R> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        int rebuildMillis = json.getInt(REBUILD_MILLIS_FIELD, 0);
+        Object data = json.get("data");
+        if (data instanceof JSONObject && json.containsKey("expireTime")) {
+            // RedisData包装的逻辑过期数据
+            RedisData redisData = json.toBean(RedisData.class);
+            long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new CacheEntry<>(((JSONObject) data).toBean(type), expireAt, true, rebuildMillis);
+        }
+        return new CacheEntry<>(json.toBean(type), json.getLong(EXPIRE_AT_FIELD, 0L), false, rebuildMillis);
+    }
+}
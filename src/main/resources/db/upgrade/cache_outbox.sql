@@ -0,0 +1,16 @@
+-- 给已有库加上缓存失效事件表tb_cache_outbox，新建库直接用hmdp.sql即可
+-- 更新店铺、新增优惠券的事务会写入这张表（hmdp.cache.outbox.enabled默认开启），要在部署新版本之前执行，
+-- 否则这些更新会因为表不存在而回滚
+
+CREATE TABLE IF NOT EXISTS `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `cache_key` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '需要删除的缓存key',
+  `create_time` datetime(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) COMMENT '创建时间，和业务数据在同一个事务中写入',
+  `visible_time` datetime(3) NULL DEFAULT NULL COMMENT '后台任务第一次读到事件的时间，不早于事务提交时间，第二次删除从这里开始计时',
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_visible_time`(`visible_time`) USING BTREE
+) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '缓存失效事件表，事务提交后由后台任务批量删除缓存' ROW_FORMAT = Compact;
+
+-- 已经用早期的hmdp.sql建过这张表（没有visible_time列）时，改为执行下面两句
+-- ALTER TABLE `tb_cache_outbox` ADD COLUMN `visible_time` datetime(3) NULL DEFAULT NULL COMMENT '后台任务第一次读到事件的时间，不早于事务提交时间，第二次删除从这里开始计时' AFTER `create_time`;
+-- ALTER TABLE `tb_cache_outbox` DROP INDEX `idx_create_time`, ADD INDEX `idx_visible_time`(`visible_time`) USING BTREE;
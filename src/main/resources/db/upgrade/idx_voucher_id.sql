@@ -0,0 +1,4 @@
+-- 给已有库的tb_voucher_order加上voucher_id索引，新建库直接用hmdp.sql即可
+-- 秒杀券预热时按voucher_id查询下单用户，uk_user_voucher(user_id, voucher_id)以user_id开头用不上，没有这个索引会全表扫描
+
+ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_id`(`voucher_id`) USING BTREE;
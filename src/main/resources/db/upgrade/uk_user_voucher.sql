@@ -0,0 +1,25 @@
+-- 给已有库的tb_voucher_order加上一人一单的唯一索引 uk_user_voucher(user_id, voucher_id)，新建库直接用hmdp.sql即可
+-- 执行前先停止下单服务（或者关闭秒杀入口），避免执行期间写入新的重复订单
+-- 同一个用户同一张券有多个订单时只保留id最小的一单，其余的备份到tb_voucher_order_dup后删除，
+-- 备份表中的订单需要人工退款，不会自动把库存加回去
+
+-- 1.备份重复订单
+CREATE TABLE IF NOT EXISTS `tb_voucher_order_dup` LIKE `tb_voucher_order`;
+
+INSERT IGNORE INTO `tb_voucher_order_dup`
+SELECT o.*
+FROM `tb_voucher_order` o
+JOIN (
+    SELECT `user_id`, `voucher_id`, MIN(`id`) AS `keep_id`
+    FROM `tb_voucher_order`
+    GROUP BY `user_id`, `voucher_id`
+    HAVING COUNT(*) > 1
+) d ON o.`user_id` = d.`user_id` AND o.`voucher_id` = d.`voucher_id` AND o.`id` <> d.`keep_id`;
+
+-- 2.删除重复订单
+DELETE o
+FROM `tb_voucher_order` o
+JOIN `tb_voucher_order_dup` d ON o.`id` = d.`id`;
+
+-- 3.加唯一索引
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
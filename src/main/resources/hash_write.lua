@@ -0,0 +1,8 @@
+-- 用新的实体整体替换缓存的Hash并设置过期时间，三个命令原子执行，读取方不会看到中间状态
+-- KEYS[1]: 缓存key
+-- ARGV[1]: 过期毫秒数
+-- ARGV[2..]: 字段和值，至少包含标记字段
+redis.call('del', KEYS[1])
+redis.call('hmset', KEYS[1], unpack(ARGV, 2))
+redis.call('pexpire', KEYS[1], ARGV[1])
+return 1
@@ -0,0 +1,9 @@
+-- 只在缓存的Hash存在时原地增加计数字段，缓存不存在时不创建，等下次查询从数据库完整加载
+-- KEYS[1]: 缓存key
+-- ARGV[1]: 标记字段，值为1表示缓存的是存在的实体
+-- ARGV[2]: 计数字段
+-- ARGV[3]: 增量
+if (redis.call('hget', KEYS[1], ARGV[1]) == '1') then
+    return redis.call('hincrby', KEYS[1], ARGV[2], ARGV[3])
+end
+return nil
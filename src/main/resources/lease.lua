@@ -0,0 +1,16 @@
+-- 从中心库存中批量租借库存到本地
+-- KEYS[1]: 库存key  seckill:stock:{voucherId}
+-- ARGV[1]: 每次租借的数量
+-- 返回值：租借到的数量；-1 库存未加载
+
+local stock = redis.call('get', KEYS[1])
+if (not stock) then
+    return -1
+end
+stock = tonumber(stock)
+if (stock <= 0) then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -n)
+return n
@@ -0,0 +1,50 @@
+-- 令牌桶限流：同时检查优惠券维度和用户维度的令牌桶，两个都有令牌时才扣减
+-- KEYS[1]: 优惠券令牌桶  seckill:limit:{voucherId}
+-- KEYS[2]: 用户令牌桶  seckill:limit:{voucherId}:{userId}
+-- ARGV[1]: 优惠券每秒生成的令牌数
+-- ARGV[2]: 优惠券令牌桶容量
+-- ARGV[3]: 用户每秒生成的令牌数，小于等于0表示不限制用户
+-- ARGV[4]: 用户令牌桶容量
+-- 返回值：1 放行；0 限流
+
+-- 使用Redis服务器时间，避免各节点时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 计算令牌桶当前的令牌数
+local function refill(key, rate, capacity)
+    local bucket = redis.call('hmget', key, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1])
+    local ts = tonumber(bucket[2])
+    if (not tokens) then
+        return capacity
+    end
+    local elapsed = math.max(0, now - ts)
+    return math.min(capacity, tokens + elapsed * rate / 1000)
+end
+
+local function save(key, tokens, rate, capacity)
+    redis.call('hmset', key, 'tokens', tokens, 'ts', now)
+    -- 令牌桶填满所需的时间之后就可以删除了
+    redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+end
+
+local voucherRate = tonumber(ARGV[1])
+local voucherCapacity = tonumber(ARGV[2])
+local userRate = tonumber(ARGV[3])
+local userCapacity = tonumber(ARGV[4])
+
+local voucherTokens = refill(KEYS[1], voucherRate, voucherCapacity)
+if (voucherTokens < 1) then
+    return 0
+end
+if (userRate > 0) then
+    local userTokens = refill(KEYS[2], userRate, userCapacity)
+    if (userTokens < 1) then
+        return 0
+    end
+    save(KEYS[2], userTokens - 1, userRate, userCapacity)
+end
+save(KEYS[1], voucherTokens - 1, voucherRate, voucherCapacity)
+return 1
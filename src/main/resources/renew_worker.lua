@@ -0,0 +1,8 @@
+-- 续约worker id，只有租约仍然属于当前节点时才续约
+-- KEYS[1]: worker id的key  id:worker:{workerId}
+-- ARGV[1]: 当前节点的标识
+-- ARGV[2]: 租约时长，毫秒
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
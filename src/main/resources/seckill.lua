@@ -0,0 +1,31 @@
+-- 秒杀资格判断：库存判断、一人一单判断、扣减库存和记录下单用户必须是原子操作
+-- KEYS[1]: 库存key  seckill:stock:{voucherId}
+-- KEYS[2]: 下单用户集合key  seckill:order:{voucherId}
+-- KEYS[3]: 订单消息队列key  stream.orders
+-- ARGV[1]: 用户id
+-- ARGV[2]: 优惠券id
+-- ARGV[3]: 订单id
+-- 返回值：0 成功；1 库存不足；2 重复下单；3 库存未加载
+-- 库存和下单用户集合用{voucherId}做hash tag，在同一个slot；stream.orders是所有券共用的，
+-- Redis Cluster下和它们不在同一个slot，这个脚本只能用于单机或哨兵部署
+
+-- 1.判断库存是否已经写入Redis
+local stock = redis.call('get', KEYS[1])
+if (not stock) then
+    return 3
+end
+-- 2.判断库存是否充足
+if (tonumber(stock) <= 0) then
+    return 1
+end
+-- 3.判断用户是否下过单
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+-- 4.扣库存
+redis.call('incrby', KEYS[1], -1)
+-- 5.记录下单用户
+redis.call('sadd', KEYS[2], ARGV[1])
+-- 6.发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...，消费者ACK后会XDEL删除，队列中只有未处理完的订单
+redis.call('xadd', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
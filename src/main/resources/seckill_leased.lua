@@ -0,0 +1,18 @@
+-- 本地租约已经扣过库存，这里只做一人一单判断和发送订单消息
+-- KEYS[1]: 下单用户集合key  seckill:order:{voucherId}
+-- KEYS[2]: 订单消息队列key  stream.orders
+-- ARGV[1]: 用户id
+-- ARGV[2]: 优惠券id
+-- ARGV[3]: 订单id
+-- 返回值：0 成功；2 重复下单
+-- stream.orders是所有券共用的，Redis Cluster下和下单用户集合不在同一个slot，只能用于单机或哨兵部署
+
+-- 1.判断用户是否下过单
+if (redis.call('sismember', KEYS[1], ARGV[1]) == 1) then
+    return 2
+end
+-- 2.记录下单用户
+redis.call('sadd', KEYS[1], ARGV[1])
+-- 3.发送消息到队列中，消费者ACK后会XDEL删除，队列中只有未处理完的订单
+redis.call('xadd', KEYS[2], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
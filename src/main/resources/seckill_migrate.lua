@@ -0,0 +1,36 @@
+-- 把旧格式的秒杀key迁移到 seckill:stock:{voucherId} 和 seckill:order:{voucherId}，库存和下单用户以Redis中的为准
+-- KEYS[1]: 没有hash tag的库存key  seckill:stock:voucherId
+-- KEYS[2]: 没有hash tag的下单用户集合key  seckill:order:voucherId
+-- KEYS[3]: 库存key  seckill:stock:{voucherId}
+-- KEYS[4]: 下单用户集合key  seckill:order:{voucherId}
+-- KEYS[5]: 分片数key  seckill:shards:{voucherId}
+-- KEYS[6...]: 分片库存key  seckill:stock:{voucherId}:i，只有多个分片时才有
+-- 返回值：0
+
+-- 1.先合并下单用户集合，库存出现在新key上之前，新集合里已经有所有买过的用户，同一个用户不会再买一次
+if (redis.call('exists', KEYS[2]) == 1) then
+    redis.call('sunionstore', KEYS[4], KEYS[4], KEYS[2])
+    redis.call('del', KEYS[2])
+end
+-- 2.没有hash tag的库存key改名
+if (redis.call('exists', KEYS[1]) == 1 and redis.call('exists', KEYS[3]) == 0) then
+    redis.call('rename', KEYS[1], KEYS[3])
+end
+-- 3.分片库存合并回一个key
+if (#KEYS > 5) then
+    local total = 0
+    local found = false
+    for i = 6, #KEYS do
+        local stock = redis.call('get', KEYS[i])
+        if (stock) then
+            total = total + tonumber(stock)
+            found = true
+        end
+    end
+    if (found) then
+        redis.call('incrby', KEYS[3], total)
+        redis.call('del', unpack(KEYS, 6))
+    end
+end
+redis.call('del', KEYS[5])
+return 0
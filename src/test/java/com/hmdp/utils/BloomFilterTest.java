@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    @Test
+    void neverReportsAnInsertedIdAsAbsent() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    void falsePositiveRateStaysNearTarget() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            filter.put(id);
+        }
+        int falsePositives = 0;
+        int probes = 100000;
+        for (long id = 1_000_000; id < 1_000_000 + probes; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        // 目标1%，留一倍的余量
+        assertTrue(falsePositives < probes * 0.02, "误判数: " + falsePositives);
+    }
+}
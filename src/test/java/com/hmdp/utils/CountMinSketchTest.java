@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Count-Min Sketch只会高估，并且每行的哈希相互独立
+ */
+class CountMinSketchTest {
+
+    @Test
+    void neverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(256, 4);
+        for (int i = 0; i < 2000; i++) {
+            for (int j = 0; j <= i % 5; j++) {
+                sketch.add("cache:shop:" + i);
+            }
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(sketch.estimate("cache:shop:" + i) >= i % 5 + 1);
+        }
+    }
+
+    @Test
+    void keysWithSameHashCodeAreCountedApart() {
+        // "Aa"和"BB"的String.hashCode相同，每行都用hashCode时会在所有行冲突
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        CountMinSketch sketch = new CountMinSketch(4096, 4);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("BB");
+        }
+        assertEquals(1000, sketch.estimate("BB"));
+        assertEquals(0, sketch.estimate("Aa"));
+    }
+
+    @Test
+    void sketchesOfSameShapeShareIndexes() {
+        CountMinSketch a = new CountMinSketch(1000, 3);
+        CountMinSketch b = new CountMinSketch(1024, 3);
+        int[] indexes = a.indexes("cache:blog:1");
+        b.add(indexes);
+        assertEquals(1, b.estimate("cache:blog:1"));
+
+        b.clear();
+        assertEquals(0, b.estimate(indexes));
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 滑动窗口按访问时间滑动，不依赖定时任务切换时间片
+ */
+class HotKeyDetectorTest {
+
+    private static final long BUCKET_MILLIS = 1000;
+    private static final String KEY = "cache:shop:1";
+
+    private HotKeyDetector detector;
+    private long start;
+
+    @BeforeEach
+    void setUp() {
+        detector = new HotKeyDetector(mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "bucketMillis", BUCKET_MILLIS);
+        ReflectionTestUtils.setField(detector, "bucketCount", 5);
+        ReflectionTestUtils.setField(detector, "width", 1024);
+        ReflectionTestUtils.setField(detector, "depth", 4);
+        ReflectionTestUtils.setField(detector, "threshold", 100);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+        // 从当前时间片的起点开始，避免测试中途跨过时间片
+        start = System.currentTimeMillis() / BUCKET_MILLIS * BUCKET_MILLIS;
+    }
+
+    private boolean record(int times, long now) {
+        boolean hot = false;
+        for (int i = 0; i < times; i++) {
+            hot = detector.record(KEY, now);
+        }
+        return hot;
+    }
+
+    @Test
+    void countsAcrossBucketsInsideTheWindow() {
+        assertFalse(record(60, start));
+        // 两个时间片合计超过阈值
+        assertTrue(record(60, start + 2 * BUCKET_MILLIS));
+    }
+
+    @Test
+    void oldBucketsLeaveTheWindowWithoutTick() {
+        record(60, start);
+        record(30, start + 2 * BUCKET_MILLIS);
+        // 第一个时间片已经滑出窗口，只剩30+20次
+        assertFalse(record(20, start + 5 * BUCKET_MILLIS));
+        assertTrue(record(50, start + 5 * BUCKET_MILLIS));
+    }
+
+    @Test
+    void longIdleGapClearsTheWholeWindow() {
+        assertTrue(record(100, start));
+        assertFalse(record(99, start + 60 * BUCKET_MILLIS));
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地过滤器判断不存在时，用Redis中最近新增的id兜底丢失的广播
+ */
+class IdBloomFilterTest {
+
+    private static final String PREFIX = "cache:shop:";
+    private static final String ADDED_KEY = RedisConstants.CACHE_BLOOM_ADDED_KEY + PREFIX;
+
+    private ZSetOperations<String, String> zSetOps;
+    private IdBloomFilter bloomFilter;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        zSetOps = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOps);
+        when(zSetOps.score(anyString(), anyString())).thenReturn(null);
+        bloomFilter = new IdBloomFilter(template, mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(bloomFilter, "enabled", true);
+        ReflectionTestUtils.setField(bloomFilter, "expectedInsertions", 1000L);
+        ReflectionTestUtils.setField(bloomFilter, "fpp", 0.01);
+        ReflectionTestUtils.setField(bloomFilter, "rebuildIntervalMillis", 3600000L);
+        ReflectionTestUtils.setField(bloomFilter, "missMaxSize", 1000L);
+        ReflectionTestUtils.setField(bloomFilter, "missTtlMillis", 60000L);
+    }
+
+    @Test
+    void letsEverythingThroughUntilBuilt() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+        assertTrue(bloomFilter.mightContain("cache:unknown:", 42L));
+        assertTrue(bloomFilter.mightContain(PREFIX, "not-a-number"));
+    }
+
+    @Test
+    void rejectsIdsThatAreNeitherLoadedNorRecentlyAdded() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+
+        assertTrue(bloomFilter.mightContain(PREFIX, 1L));
+        assertFalse(bloomFilter.mightContain(PREFIX, 42L));
+        // 重建时清理两个周期以前新增的id
+        verify(zSetOps).removeRangeByScore(eq(ADDED_KEY), eq(Double.NEGATIVE_INFINITY), anyDouble());
+    }
+
+    @Test
+    void recentlyAddedIdMissedByBroadcastIsAccepted() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+        // 其他节点新增了42，本节点没有收到广播
+        when(zSetOps.score(ADDED_KEY, "42")).thenReturn(1.0);
+
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+        // 确认过一次之后补进本地过滤器，不再访问Redis
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+        verify(zSetOps, times(1)).score(ADDED_KEY, "42");
+    }
+
+    @Test
+    void repeatedMissIsAnsweredLocally() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(bloomFilter.mightContain(PREFIX, 42L));
+        }
+        // 同一个不存在的id只确认一次
+        verify(zSetOps, times(1)).score(ADDED_KEY, "42");
+    }
+
+    @Test
+    void idAddedAfterAMissIsAccepted() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+        assertFalse(bloomFilter.mightContain(PREFIX, 42L));
+
+        bloomFilter.add(PREFIX, 42L);
+
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+    }
+
+    @Test
+    void addRecordsTheIdInRedis() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+
+        bloomFilter.add(PREFIX, 42L);
+
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+        verify(zSetOps).add(eq(ADDED_KEY), eq("42"), anyDouble());
+    }
+
+    @Test
+    void redisFailureDuringRecheckFailsOpen() {
+        bloomFilter.register(PREFIX, () -> Arrays.asList(1L, 2L));
+        bloomFilter.rebuild();
+        when(zSetOps.score(anyString(), anyString())).thenThrow(new IllegalStateException("redis down"));
+
+        assertTrue(bloomFilter.mightContain(PREFIX, 42L));
+    }
+}
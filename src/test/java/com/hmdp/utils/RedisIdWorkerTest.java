@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 号段模式：号段之间的切换不能重复发号，预取好的号段用完当前号段时直接接上
+ */
+class RedisIdWorkerTest {
+
+    private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+
+    private ValueOperations<String, String> valueOps;
+    private RedisIdWorker idWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        // 用一个本地计数器模拟INCRBY
+        AtomicLong counter = new AtomicLong();
+        when(valueOps.increment(anyString(), anyLong()))
+                .thenAnswer(invocation -> counter.addAndGet(invocation.getArgument(1)));
+        idWorker = new RedisIdWorker(template);
+        ReflectionTestUtils.setField(idWorker, "segmentEnabled", true);
+    }
+
+    @Test
+    void prefetchedSegmentTakesOverWithoutBlockingOnRedis() {
+        ReflectionTestUtils.setField(idWorker, "segmentSize", 10);
+        for (long i = 1; i <= 9; i++) {
+            assertEquals(i, idWorker.nextId("order") & SEQUENCE_MASK);
+        }
+        // 用到80%时后台已经预取了下一个号段
+        verify(valueOps, timeout(1000).times(2)).increment(anyString(), anyLong());
+
+        assertEquals(10, idWorker.nextId("order") & SEQUENCE_MASK);
+        assertEquals(11, idWorker.nextId("order") & SEQUENCE_MASK);
+        // 切换时用的是预取好的号段，没有再同步申请
+        verify(valueOps, times(2)).increment(anyString(), anyLong());
+    }
+
+    @Test
+    void concurrentCallersNeverShareASequence() throws InterruptedException {
+        ReflectionTestUtils.setField(idWorker, "segmentSize", 100);
+        int threads = 8;
+        int perThread = 2000;
+        Set<Long> sequences = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        sequences.add(idWorker.nextId("order") & SEQUENCE_MASK);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(threads * perThread, sequences.size());
+        // 最多浪费一个预取的号段和并发同步申请的号段
+        verify(valueOps, atMost(threads * perThread / 100 + threads + 1)).increment(anyString(), anyLong());
+    }
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 本地库存租约的记账：租借、本地扣减、归还给Redis的数量要对得上
+ */
+class SeckillStockLeaseTest {
+
+    private static final Long VOUCHER_ID = 1L;
+    private static final LocalDateTime END_TIME = LocalDateTime.now().plusHours(1);
+
+    private StringRedisTemplate template;
+    private ValueOperations<String, String> valueOps;
+    private SeckillStockLease lease;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        template = mock(StringRedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        lease = new SeckillStockLease(template);
+        ReflectionTestUtils.setField(lease, "enabled", true);
+        ReflectionTestUtils.setField(lease, "blockSize", 10);
+        ReflectionTestUtils.setField(lease, "leaseTtlMillis", 30000L);
+    }
+
+    private void givenLeased(Long first, Long... rest) {
+        when(template.execute(any(RedisScript.class), anyList(), any())).thenReturn(first, (Object[]) rest);
+    }
+
+    @Test
+    void servesLocallyUntilLeaseIsUsedUp() {
+        givenLeased(3L, 0L);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SeckillStockLease.ACQUIRED, lease.tryAcquire(VOUCHER_ID, END_TIME));
+        }
+        assertEquals(SeckillStockLease.SOLD_OUT, lease.tryAcquire(VOUCHER_ID, END_TIME));
+        // 第一次租到3个，用完后再租一次发现中心库存已空
+        verify(template, times(2)).execute(any(RedisScript.class), anyList(), any());
+        // 租到的库存都卖出去了，没有东西可还
+        lease.returnAllLeases();
+        verify(valueOps, never()).increment(anyString(), anyLong());
+    }
+
+    @Test
+    void notLoadedWhenStockKeyIsMissing() {
+        givenLeased(-1L);
+
+        assertEquals(SeckillStockLease.NOT_LOADED, lease.tryAcquire(VOUCHER_ID, END_TIME));
+    }
+
+    @Test
+    void releasedUnitIsReturnedWithTheRestOfTheLease() {
+        givenLeased(10L);
+
+        lease.tryAcquire(VOUCHER_ID, END_TIME);
+        lease.tryAcquire(VOUCHER_ID, END_TIME);
+        // 重复下单，还给本地租约
+        lease.release(VOUCHER_ID);
+        lease.returnAllLeases();
+
+        verify(valueOps).increment("seckill:stock:{" + VOUCHER_ID + "}", 9L);
+    }
+
+    @Test
+    void releaseAfterCloseGoesStraightToRedis() {
+        givenLeased(1L);
+
+        lease.tryAcquire(VOUCHER_ID, END_TIME);
+        lease.returnAllLeases();
+        lease.release(VOUCHER_ID);
+
+        verify(valueOps).increment("seckill:stock:{" + VOUCHER_ID + "}", 1L);
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 雪花id的位布局和时钟回拨处理
+ */
+class SnowflakeIdWorkerTest {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final long SEQUENCE_MASK = (1L << 12) - 1;
+    private static final long WORKER_MASK = (1L << 10) - 1;
+
+    private ValueOperations<String, String> valueOps;
+    private SnowflakeIdWorker idWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.MILLISECONDS))).thenReturn(true);
+        idWorker = new SnowflakeIdWorker(template);
+        ReflectionTestUtils.setField(idWorker, "leaseTtlMillis", 30000L);
+        ReflectionTestUtils.setField(idWorker, "maxBackwardWaitMillis", 10L);
+        ReflectionTestUtils.setField(idWorker, "heartbeatMillis", 10000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(idWorker, "destroy");
+    }
+
+    private void start() {
+        ReflectionTestUtils.invokeMethod(idWorker, "init");
+    }
+
+    private int workerId() {
+        return (int) ReflectionTestUtils.getField(idWorker, "workerId");
+    }
+
+    private AtomicLong lastState() {
+        return (AtomicLong) ReflectionTestUtils.getField(idWorker, "lastState");
+    }
+
+    private static long timestampOf(long id) {
+        return (id >>> 22) + BEGIN_TIMESTAMP;
+    }
+
+    @Test
+    void idCarriesTimestampWorkerIdAndSequence() {
+        start();
+        long before = System.currentTimeMillis();
+        long id = idWorker.nextId("order");
+        long after = System.currentTimeMillis();
+
+        assertTrue(id > 0);
+        assertEquals(workerId(), (id >>> 12) & WORKER_MASK);
+        assertTrue(timestampOf(id) >= before && timestampOf(id) <= after);
+        assertEquals(0, id & SEQUENCE_MASK);
+    }
+
+    @Test
+    void idsAreUniqueAndIncreasing() {
+        start();
+        Set<Long> ids = new HashSet<>();
+        long previous = 0;
+        for (int i = 0; i < 20000; i++) {
+            long id = idWorker.nextId("order");
+            assertTrue(id > previous);
+            previous = id;
+            ids.add(id);
+        }
+        assertEquals(20000, ids.size());
+    }
+
+    @Test
+    void smallBackwardJumpWaitsForTheClock() {
+        start();
+        long ahead = System.currentTimeMillis() - BEGIN_TIMESTAMP + 5;
+        lastState().set(ahead << 12 | 7);
+
+        long id = idWorker.nextId("order");
+
+        // 等到时钟追上以后按正常的时间戳生成
+        assertTrue(timestampOf(id) >= ahead + BEGIN_TIMESTAMP);
+        assertTrue(System.currentTimeMillis() - BEGIN_TIMESTAMP >= ahead);
+    }
+
+    @Test
+    void largeBackwardJumpBorrowsSequencesFromLastTimestamp() {
+        start();
+        long ahead = System.currentTimeMillis() - BEGIN_TIMESTAMP + 60000;
+        lastState().set(ahead << 12 | 7);
+
+        long id = idWorker.nextId("order");
+        assertEquals(ahead + BEGIN_TIMESTAMP, timestampOf(id));
+        assertEquals(8, id & SEQUENCE_MASK);
+
+        // 同一毫秒的序列号用完后借用下一毫秒
+        lastState().set(ahead << 12 | SEQUENCE_MASK);
+        id = idWorker.nextId("order");
+        assertEquals(ahead + 1 + BEGIN_TIMESTAMP, timestampOf(id));
+        assertEquals(0, id & SEQUENCE_MASK);
+    }
+
+    @Test
+    void takeoverStartsAfterPreviousOwnersTimestamp() {
+        long previousMillis = System.currentTimeMillis() + 50;
+        when(valueOps.get(anyString())).thenAnswer(invocation ->
+                ((String) invocation.getArgument(0)).startsWith(RedisConstants.ID_WORKER_TIME_KEY)
+                        ? String.valueOf(previousMillis) : null);
+        start();
+
+        long id = idWorker.nextId("order");
+        // 等本地时钟追上上一个节点的时间戳，并且从它的下一毫秒开始
+        assertTrue(System.currentTimeMillis() > previousMillis);
+        assertTrue(timestampOf(id) > previousMillis);
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Follow;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(CacheSchemas.all());
+
+    /**
+     * hmdp.sql中的第一条店铺
+     */
+    static Shop sampleShop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,"
+                + "https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123456789));
+        return shop;
+    }
+
+    @Test
+    void roundTripsRegisteredSchema() {
+        Shop shop = sampleShop();
+        byte[] bytes = codec.encode(new CacheEntry<>(shop, 1700000000123L, true, 0));
+
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        CacheEntry<Shop> entry = codec.decode(bytes, Shop.class);
+        assertEquals(shop, entry.getData());
+        assertEquals(1700000000123L, entry.getExpireAt());
+        assertTrue(entry.isLogicalExpire());
+    }
+
+    @Test
+    void roundTripsNullFields() {
+        Shop shop = sampleShop();
+        shop.setOpenHours(null);
+        shop.setX(null);
+        byte[] bytes = codec.encode(new CacheEntry<>(shop, 1700000000123L, true, 0));
+
+        assertEquals(shop, codec.decode(bytes, Shop.class).getData());
+    }
+
+    @Test
+    void keepsRebuildCostAndExpireMode() {
+        Shop shop = sampleShop();
+        CacheEntry<Shop> logical = codec.decode(
+                codec.encode(new CacheEntry<>(shop, 1700000000123L, true, 42)), Shop.class);
+        assertTrue(logical.isLogicalExpire());
+        assertEquals(42, logical.getRebuildMillis());
+
+        // 使用Redis TTL的条目同样带expireAt，靠标志位区分，不能当成逻辑过期
+        CacheEntry<Shop> ttl = codec.decode(
+                codec.encode(new CacheEntry<>(shop, 1700000000123L, false, 0)), Shop.class);
+        assertFalse(ttl.isLogicalExpire());
+        assertEquals(1700000000123L, ttl.getExpireAt());
+        assertEquals(0, ttl.getRebuildMillis());
+    }
+
+    @Test
+    void unregisteredTypeFallsBackToJsonBody() {
+        Follow follow = new Follow();
+        follow.setId(7L);
+        follow.setUserId(1L);
+        follow.setFollowUserId(2L);
+        byte[] bytes = codec.encode(new CacheEntry<>(follow, 0, false, 0));
+
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        Follow decoded = codec.decode(bytes, Follow.class).getData();
+        assertEquals(follow.getId(), decoded.getId());
+        assertEquals(follow.getFollowUserId(), decoded.getFollowUserId());
+    }
+
+    @Test
+    void decodesFormatVersion1() {
+        // 格式版本1：没有标志位和重建耗时，过期时间戳大于0就是逻辑过期
+        Shop shop = sampleShop();
+        BinaryWriter out = new BinaryWriter(128);
+        out.writeByte(BinaryCacheCodec.MAGIC);
+        out.writeByte(1);
+        out.writeByte(new CacheSchemas.ShopSchema().id());
+        out.writeByte(1);
+        out.writeFixedLong(1700000000123L);
+        new CacheSchemas.ShopSchema().write(shop, out);
+
+        CacheEntry<Shop> entry = codec.decode(out.toByteArray(), Shop.class);
+        assertEquals(shop, entry.getData());
+        assertEquals(1700000000123L, entry.getExpireAt());
+        assertTrue(entry.isLogicalExpire());
+        assertEquals(0, entry.getRebuildMillis());
+    }
+
+    @Test
+    void unknownVersionsAndMismatchedTypesAreMisses() {
+        byte[] bytes = codec.encode(new CacheEntry<>(sampleShop(), 0, false, 0));
+
+        // 读到的类型和schema不一致
+        assertNull(codec.decode(bytes, Blog.class));
+        // 更新的格式版本
+        byte[] newerFormat = bytes.clone();
+        newerFormat[1] = 3;
+        assertNull(codec.decode(newerFormat, Shop.class));
+        // 更新的schema版本
+        byte[] newerSchema = bytes.clone();
+        newerSchema[3] = 2;
+        assertNull(codec.decode(newerSchema, Shop.class));
+    }
+
+    @Test
+    void jsonIsNeverMistakenForBinary() {
+        byte[] json = new JsonCacheCodec().encode(new CacheEntry<>(sampleShop(), 1700000000123L, true, 0));
+        assertFalse(BinaryCacheCodec.isBinary(json));
+        assertFalse(BinaryCacheCodec.isBinary("{}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(codec.decode(json, Shop.class));
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.function.Supplier;
+
+/**
+ * 比较JSON和二进制编码的大小和编解码耗时，默认不执行：
+ * mvn test -Dtest=CacheCodecBenchmark -Dbenchmark=true
+ * 数据是hmdp.sql中的第一条店铺，逻辑过期，先预热再计时，结果和机器、JDK版本有关，只用来对比两种格式
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class CacheCodecBenchmark {
+
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    void compareCodecs() {
+        CacheEntry<Shop> entry = new CacheEntry<>(BinaryCacheCodecTest.sampleShop(), System.currentTimeMillis(), true, 10);
+        CacheCodec json = new JsonCacheCodec();
+        CacheCodec binary = new BinaryCacheCodec(CacheSchemas.all());
+        byte[] jsonBytes = json.encode(entry);
+        byte[] binaryBytes = binary.encode(entry);
+
+        System.out.printf("size:   json %d B, binary %d B%n", jsonBytes.length, binaryBytes.length);
+        System.out.printf("encode: json %.2f us, binary %.2f us%n",
+                measure(() -> json.encode(entry)), measure(() -> binary.encode(entry)));
+        System.out.printf("decode: json %.2f us, binary %.2f us%n",
+                measure(() -> json.decode(jsonBytes, Shop.class)), measure(() -> binary.decode(binaryBytes, Shop.class)));
+    }
+
+    /**
+     * @return 每次调用的平均微秒数
+     */
+    private static double measure(Supplier<?> task) {
+        Object sink = null;
+        for (int i = 0; i < WARMUP; i++) {
+            sink = task.get();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = task.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return elapsed / 1000.0 / ITERATIONS;
+    }
+}
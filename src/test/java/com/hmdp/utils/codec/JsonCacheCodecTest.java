@@ -0,0 +1,103 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * JSON格式也带上重建耗时和过期时间，默认配置下XFetch提前刷新同样生效
+ */
+class JsonCacheCodecTest {
+
+    private final JsonCacheCodec codec = new JsonCacheCodec();
+
+    /**
+     * Hutool的JSON只保留到毫秒，数据库中的时间本来也没有纳秒
+     */
+    private static Shop sampleShop() {
+        Shop shop = BinaryCacheCodecTest.sampleShop();
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    @Test
+    void redisTtlEntryKeepsExpireAtAndRebuildCost() {
+        Shop shop = sampleShop();
+        CacheEntry<Shop> entry = codec.decode(
+                codec.encode(new CacheEntry<>(shop, 1700000000123L, false, 42)), Shop.class);
+
+        assertEquals(shop, entry.getData());
+        assertFalse(entry.isLogicalExpire());
+        assertEquals(1700000000123L, entry.getExpireAt());
+        assertEquals(42, entry.getRebuildMillis());
+    }
+
+    @Test
+    void logicalExpireEntryKeepsRebuildCost() {
+        Shop shop = sampleShop();
+        CacheEntry<Shop> entry = codec.decode(
+                codec.encode(new CacheEntry<>(shop, 1700000000000L, true, 42)), Shop.class);
+
+        assertEquals(shop, entry.getData());
+        assertTrue(entry.isLogicalExpire());
+        assertEquals(1700000000000L, entry.getExpireAt());
+        assertEquals(42, entry.getRebuildMillis());
+    }
+
+    @Test
+    void oldNodesStillReadTheNewFormat() {
+        // 旧版本节点的读取方式：直接转换成实体或者RedisData
+        Shop shop = sampleShop();
+        String plain = new String(codec.encode(new CacheEntry<>(shop, 1700000000123L, false, 42)), StandardCharsets.UTF_8);
+        assertEquals(shop, JSONUtil.toBean(plain, Shop.class));
+
+        String wrapped = new String(codec.encode(new CacheEntry<>(shop, 1700000000000L, true, 42)), StandardCharsets.UTF_8);
+        RedisData redisData = JSONUtil.toBean(wrapped, RedisData.class);
+        assertEquals(shop, JSONUtil.toBean(JSONUtil.toJsonStr(redisData.getData()), Shop.class));
+    }
+
+    @Test
+    void oldFormatHasNoRefreshMetadata() {
+        Shop shop = sampleShop();
+        CacheEntry<Shop> entry = codec.decode(JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8), Shop.class);
+
+        assertEquals(shop, entry.getData());
+        assertEquals(0, entry.getExpireAt());
+        assertEquals(0, entry.getRebuildMillis());
+    }
+
+    @Test
+    void xfetchRefreshesEarlyUnderJsonCodec() {
+        CacheClient cacheClient = new CacheClient(mock(StringRedisTemplate.class), mock(RedisMessageListenerContainer.class),
+                mock(IdBloomFilter.class), mock(CacheRebuildExecutor.class), mock(HotKeyDetector.class));
+        ReflectionTestUtils.setField(cacheClient, "xfetchEnabled", true);
+        ReflectionTestUtils.setField(cacheClient, "xfetchBeta", 1.0);
+        long now = System.currentTimeMillis();
+        Shop shop = sampleShop();
+        // 还有1毫秒过期，上次重建花了1小时，几乎一定会提前刷新
+        CacheEntry<Shop> closeToExpiry = codec.decode(
+                codec.encode(new CacheEntry<>(shop, now + 1, false, 3600000)), Shop.class);
+        // 还有1小时过期，重建只要1毫秒，几乎不会提前刷新
+        CacheEntry<Shop> fresh = codec.decode(
+                codec.encode(new CacheEntry<>(shop, now + 3600000, false, 1)), Shop.class);
+
+        assertTrue((Boolean) ReflectionTestUtils.invokeMethod(cacheClient, "shouldRefresh", closeToExpiry, now));
+        assertFalse((Boolean) ReflectionTestUtils.invokeMethod(cacheClient, "shouldRefresh", fresh, now));
+    }
+}